@@ -0,0 +1,361 @@
+package com.xrbpowered.diff;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * {@link TextLines} of a UTF-8 or Latin-1 file. The file is read into a single
+ * byte buffer and indexed by line offsets. Lines are hashed and compared in the
+ * buffer, Strings are only decoded by {@link #get(int)}.
+ * Line splitting follows {@link StringLines#split(String)}.
+ * <p>
+ * The buffer is a copy on the heap: the lines stay valid when the file is
+ * changed or deleted, and the file is not locked while it is shown.
+ */
+public class ByteLines extends TextLines {
+
+	/**
+	 * Largest single read, so that the channel does not need a temporary direct buffer of the file size.
+	 */
+	public static final int readBlock = 1024*1024;
+
+	/**
+	 * Number of bytes checked for UTF-16 text without a byte order mark.
+	 */
+	public static final int detectLimit = 4096;
+
+	private final ByteBuffer buf;
+
+	// start of each line, the entry after the last line is the end of the last line plus one
+	private final int[] offsets;
+	private final int size;
+
+	// CR found other than before LF, lines can't be compared byte by byte
+	private final boolean innerCR;
+
+	// not valid UTF-8, every byte is one character
+	private final boolean latin1;
+
+	private ByteLines(ByteBuffer buf, int[] offsets, int size, boolean innerCR, boolean latin1) {
+		this.buf = buf;
+		this.offsets = offsets;
+		this.size = size;
+		this.innerCR = innerCR;
+		this.latin1 = latin1;
+	}
+
+	public Charset getCharset() {
+		return latin1 ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	private int start(int index) {
+		return offsets[index];
+	}
+
+	private int end(int index) {
+		int end = offsets[index+1]-1;
+		if(end>offsets[index] && buf.get(end-1)=='\r')
+			end--;
+		return end;
+	}
+
+	@Override
+	public String get(int index) {
+		int start = start(index);
+		byte[] bytes = new byte[end(index)-start];
+		for(int i = 0; i<bytes.length; i++)
+			bytes[i] = buf.get(start+i);
+		String s = new String(bytes, getCharset());
+		return innerCR ? s.replace("\r", "") : s;
+	}
+
+	@Override
+	public long sizeInBytes() {
+		return 48L+buf.capacity()+offsets.length*4L;
+	}
+
+	@Override
+	public int hash(int index) {
+		int h = 0;
+		for(int i = start(index), end = end(index); i<end; i++) {
+			int b = buf.get(i);
+			if(b<0) {
+				if(!latin1)
+					return super.hash(index);
+				b &= 0xff;
+			}
+			if(b!='\r')
+				h = 31*h+b;
+		}
+		return h;
+	}
+
+	@Override
+	public boolean equal(int index, TextLines other, int otherIndex) {
+		if(!(other instanceof ByteLines))
+			return super.equal(index, other, otherIndex);
+		ByteLines m = (ByteLines) other;
+		if(innerCR || m.innerCR || latin1!=m.latin1)
+			return super.equal(index, other, otherIndex);
+
+		int start = start(index);
+		int len = end(index)-start;
+		int otherStart = m.start(otherIndex);
+		if(m.end(otherIndex)-otherStart!=len)
+			return false;
+		for(int i = 0; i<len; i++) {
+			if(buf.get(start+i)!=m.buf.get(otherStart+i))
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public CharReader reader() {
+		return new CharReader() {
+			private int pos, end;
+			private int low;
+
+			@Override
+			public void reset(int index, boolean trim) {
+				pos = start(index);
+				end = end(index);
+				low = -1;
+				if(trim) {
+					while(pos<end && isTrimmed(buf.get(pos)))
+						pos++;
+					while(end>pos && isTrimmed(buf.get(end-1)))
+						end--;
+				}
+			}
+
+			@Override
+			public int next() {
+				if(low>=0) {
+					int c = low;
+					low = -1;
+					return c;
+				}
+				while(pos<end) {
+					int b = buf.get(pos++);
+					if(b>=0) {
+						if(b=='\r')
+							continue;
+						return b;
+					}
+					if(latin1)
+						return b & 0xff;
+					if((b & 0xe0)==0xc0)
+						return ((b & 0x1f)<<6) | (buf.get(pos++) & 0x3f);
+					if((b & 0xf0)==0xe0) {
+						int c = ((b & 0x0f)<<12) | ((buf.get(pos++) & 0x3f)<<6);
+						return c | (buf.get(pos++) & 0x3f);
+					}
+					int cp = ((b & 0x07)<<18) | ((buf.get(pos++) & 0x3f)<<12);
+					cp |= ((buf.get(pos++) & 0x3f)<<6) | (buf.get(pos++) & 0x3f);
+					// split into a surrogate pair
+					cp -= 0x10000;
+					low = 0xdc00 | (cp & 0x3ff);
+					return 0xd800 | (cp>>10);
+				}
+				return -1;
+			}
+		};
+	}
+
+	private static boolean isTrimmed(int b) {
+		return b>=0 && b<=' ';
+	}
+
+	private boolean isEmpty(int index) {
+		for(int i = start(index), end = end(index); i<end; i++) {
+			if(buf.get(i)!='\r')
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Loads a text file. UTF-8 is used unless the file has a UTF-16 byte order mark
+	 * or looks like UTF-16, and text that is not valid UTF-8 is read as Latin-1.
+	 * UTF-16 files are decoded into {@link StringLines}, all other files into {@link ByteLines}.
+	 *
+	 * @throws UnsupportedEncodingException if the file contains null characters or is not valid UTF-16
+	 */
+	public static TextLines load(String path) throws IOException {
+		return load(path, null);
+	}
+
+	/**
+	 * Same as {@link #load(String)}, also passes the raw file content to the digest.
+	 */
+	static TextLines load(String path, MessageDigest digest) throws IOException {
+		try(FileChannel ch = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+			long len = ch.size();
+			if(len>Integer.MAX_VALUE)
+				throw new IOException("File is too large");
+			ByteBuffer buf = ByteBuffer.allocate((int) len);
+			while(buf.hasRemaining()) {
+				int limit = buf.limit();
+				buf.limit(Math.min(limit, buf.position()+readBlock));
+				int n = ch.read(buf);
+				buf.limit(limit);
+				if(n<0)
+					break; // truncated while reading
+			}
+			buf.flip();
+			if(digest!=null)
+				digest.update(buf.duplicate());
+
+			Charset utf16 = detectUTF16(buf);
+			if(utf16!=null)
+				return StringLines.split(decode(buf, utf16));
+			int start = (buf.limit()>=3 && (buf.get(0) & 0xff)==0xef && (buf.get(1) & 0xff)==0xbb && (buf.get(2) & 0xff)==0xbf) ? 3 : 0;
+			return index(buf, start);
+		}
+	}
+
+	/**
+	 * Checks the byte order mark, or the positions of zero bytes in the first
+	 * {@link #detectLimit} bytes, since ASCII text in UTF-16 has every other byte zero.
+	 *
+	 * @return UTF-16 charset or null if the text is not UTF-16
+	 */
+	private static Charset detectUTF16(ByteBuffer buf) {
+		int len = buf.limit();
+		if(len>=2) {
+			int b0 = buf.get(0) & 0xff;
+			int b1 = buf.get(1) & 0xff;
+			if(b0==0xfe && b1==0xff || b0==0xff && b1==0xfe)
+				return StandardCharsets.UTF_16; // decoder reads the mark
+		}
+		if(len<2 || (len & 1)!=0)
+			return null;
+		int n = Math.min(len, detectLimit) & ~1;
+		int zerosEven = 0;
+		int zerosOdd = 0;
+		for(int i = 0; i<n; i += 2) {
+			if(buf.get(i)==0)
+				zerosEven++;
+			if(buf.get(i+1)==0)
+				zerosOdd++;
+		}
+		int pairs = n/2;
+		if(zerosOdd*2>=pairs && zerosEven==0)
+			return StandardCharsets.UTF_16LE;
+		if(zerosEven*2>=pairs && zerosOdd==0)
+			return StandardCharsets.UTF_16BE;
+		return null;
+	}
+
+	private static String decode(ByteBuffer buf, Charset cs) throws UnsupportedEncodingException {
+		try {
+			CharBuffer chars = cs.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPORT)
+					.onUnmappableCharacter(CodingErrorAction.REPORT)
+					.decode(buf);
+			return chars.toString();
+		}
+		catch(CharacterCodingException e) {
+			throw new UnsupportedEncodingException(cs.name());
+		}
+	}
+
+	/**
+	 * Finds line offsets and checks the encoding in a single pass. The text is
+	 * UTF-8 until the first malformed sequence, from which point the remaining
+	 * bytes only need to be scanned for line breaks, and the whole text is read as Latin-1.
+	 *
+	 * @throws UnsupportedEncodingException if a null character is found, which means a binary file
+	 */
+	private static ByteLines index(ByteBuffer buf, int start) throws UnsupportedEncodingException {
+		int len = buf.limit();
+		int[] offsets = new int[Math.max(16, len/32)];
+		int n = 0;
+		offsets[n++] = start;
+		boolean innerCR = false;
+		boolean utf8 = true;
+		int cont = 0;
+		// allowed range of the next continuation byte, narrower after some lead bytes
+		int lo = 0x80;
+		int hi = 0xbf;
+		for(int i = start; i<len; i++) {
+			int b = buf.get(i);
+			if(cont>0) {
+				int u = b & 0xff;
+				if(u>=lo && u<=hi) {
+					cont--;
+					lo = 0x80;
+					hi = 0xbf;
+					continue;
+				}
+				utf8 = false;
+				cont = 0;
+			}
+			if(b>=0) {
+				if(b=='\n') {
+					if(n+1>=offsets.length)
+						offsets = Arrays.copyOf(offsets, offsets.length*2);
+					offsets[n++] = i+1;
+				}
+				else if(b=='\r' && (i+1>=len || buf.get(i+1)!='\n'))
+					innerCR = true;
+				else if(b==0)
+					throw new UnsupportedEncodingException();
+			}
+			else if(utf8) {
+				b &= 0xff;
+				if(b>=0xc2 && b<=0xdf)
+					cont = 1;
+				else if(b>=0xe0 && b<=0xef) {
+					cont = 2;
+					if(b==0xe0)
+						lo = 0xa0; // overlong
+					else if(b==0xed)
+						hi = 0x9f; // surrogates
+				}
+				else if(b>=0xf0 && b<=0xf4) {
+					cont = 3;
+					if(b==0xf0)
+						lo = 0x90; // overlong
+					else if(b==0xf4)
+						hi = 0x8f; // above U+10FFFF
+				}
+				else
+					utf8 = false;
+			}
+		}
+		if(cont>0)
+			utf8 = false;
+
+		// the part after the last LF is a line ending at len
+		offsets[n] = len+1;
+		ByteLines lines = new ByteLines(buf, offsets, n, innerCR, !utf8);
+		if(n>1) {
+			// like String.split, drop trailing empty lines
+			int size = n;
+			while(size>0 && lines.isEmpty(size-1))
+				size--;
+			if(size<n)
+				lines = new ByteLines(buf, offsets, size, innerCR, !utf8);
+		}
+		return lines;
+	}
+
+}
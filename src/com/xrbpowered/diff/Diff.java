@@ -32,7 +32,12 @@
 package com.xrbpowered.diff;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import com.xrbpowered.utils.CancelToken;
+import com.xrbpowered.utils.TaskInterruptedException;
 
 /**
  * This Class implements the Difference Algorithm published in "An O(ND)
@@ -44,24 +49,6 @@ import java.util.HashMap;
  */
 public class Diff {
 
-	/**
-	 * When set to true, all leading and trailing whitespace characters
-	 * are stripped out before the comparison is done.
-	 */
-	public static boolean trimSpace = false;
-	
-	/**
-	 * When set to true, all whitespace characters are converted to
-	 * a single space character before the comparison is done.
-	 */
-	public static boolean ignoreSpace = false;
-	
-	/**
-	 * When set to true, all characters are converted to their lowercase
-	 * equivalence before the comparison is done.
-	 */
-	public static boolean ignoreCase = false;
-	
 	/**
 	 * details of one difference
 	 */
@@ -78,6 +65,17 @@ public class Diff {
 		}
 	}
 
+	/**
+	 * List of differences returned by {@link Diff#diffText(String[], String[], DiffOptions)}.
+	 */
+	public static class Result extends ArrayList<DiffChunk> {
+		/**
+		 * True if the {@link DiffOptions#costLimit} was hit, in which case the
+		 * differences are valid but possibly not minimal.
+		 */
+		public boolean costLimitReached = false;
+	}
+
 	/**
 	 * Shortest Middle Snake Return Data
 	 */
@@ -85,42 +83,108 @@ public class Diff {
 		public int x, y;
 	}
 
+	/**
+	 * Settings and state shared by all parts of one LCS search.
+	 */
+	static class LcsContext {
+		public final int costLimit;
+		public final int parallelThreshold;
+		public final CancelToken cancel;
+		public volatile boolean costLimitReached = false;
+
+		public LcsContext(DiffOptions options, CancelToken cancel) {
+			this.costLimit = options.costLimit;
+			this.parallelThreshold = options.parallelThreshold;
+			this.cancel = (cancel==null) ? CancelToken.none : cancel;
+		}
+	}
+
 	/**
 	 * Find the difference in 2 text documents, comparing by textlines. The
 	 * algorithm itself is comparing 2 arrays of numbers so when comparing 2 text
 	 * documents each line is converted into a (hash) number. This hash-value is
-	 * computed by storing all textlines into a common hashtable so i can find
+	 * computed by storing all textlines into a common {@link LineInterner} so i can find
 	 * duplicates in there, and generating a new number each time a new textline is
 	 * inserted.
 	 * 
 	 * @param linesA A-version of the text (usually the old one)
 	 * @param linesB B-version of the text (usually the new one)
-	 * @return Returns a array of Items that describe the differences.
+	 * @param options comparison settings
+	 * @param cancel token checked during the search, can be null
+	 * @return Returns the differences packed into a single array.
+	 * @throws TaskInterruptedException if cancelled
 	 */
-	public static ArrayList<DiffChunk> diffText(String[] linesA, String[] linesB) {
+	public static PackedDiff diffPacked(TextLines linesA, TextLines linesB, DiffOptions options, CancelToken cancel) {
 		// prepare the input-text and convert to comparable numbers.
-		HashMap<String, Integer> h = new HashMap<>(linesA.length+linesB.length);
+		LineInterner h = new LineInterner(options.trimSpace, options.ignoreSpace, options.ignoreCase,
+				linesA.size()+linesB.size());
 
 		// The A-Version of the data (original data) to be compared.
-		DiffData dataA = new DiffData(diffCodes(linesA, h));
+		DiffData dataA = new DiffData(h.codes(linesA));
 
 		// The B-Version of the data (modified data) to be compared.
-		DiffData dataB = new DiffData(diffCodes(linesB, h));
-
-		// free up hashtable memory (maybe)
-		h.clear();
+		DiffData dataB = new DiffData(h.codes(linesB));
 
-		int max = dataA.length+dataB.length+1;
-		// vector for the (0,0) to (x,y) search
-		int[] downVector = new int[2*max+2];
-		// vector for the (u,v) to (N,M) search
-		int[] upVector = new int[2*max+2];
-
-		lcs(dataA, 0, dataA.length, dataB, 0, dataB.length, downVector, upVector);
+		LcsContext ctx = new LcsContext(options, cancel);
+		if(options.algorithm==DiffAlgorithm.histogram) {
+			new HistogramDiff(ctx, dataA, dataB, h.size()).diff();
+		}
+		else {
+			// lines found only in one version are modified anyway, search the rest
+			boolean[] inA = usedCodes(dataA, h.size());
+			boolean[] inB = usedCodes(dataB, h.size());
+			DiffData searchA = discard(dataA, inB);
+			DiffData searchB = discard(dataB, inA);
+			
+			if(options.parallel) {
+				ForkJoinPool.commonPool().invoke(new LcsTask(ctx, searchA, 0, searchA.length, searchB, 0, searchB.length));
+			}
+			else {
+				int max = searchA.length+searchB.length+1;
+				// vector for the (0,0) to (x,y) search
+				int[] downVector = new int[2*max+2];
+				// vector for the (u,v) to (N,M) search
+				int[] upVector = new int[2*max+2];
+		
+				lcs(ctx, searchA, 0, searchA.length, searchB, 0, searchB.length, downVector, upVector, false);
+			}
+			
+			undiscard(dataA, searchA);
+			undiscard(dataB, searchB);
+		}
 
 		optimize(dataA);
 		optimize(dataB);
-		return createDiffs(dataA, dataB);
+		PackedDiff res = createDiffs(dataA, dataB);
+		res.costLimitReached = ctx.costLimitReached;
+		return res;
+	}
+
+	/**
+	 * Same as {@link #diffPacked(TextLines, TextLines, DiffOptions, CancelToken)} without cancellation.
+	 */
+	public static PackedDiff diffPacked(TextLines linesA, TextLines linesB, DiffOptions options) {
+		return diffPacked(linesA, linesB, options, null);
+	}
+
+	/**
+	 * Same as {@link #diffPacked(TextLines, TextLines, DiffOptions)}, but compares
+	 * arrays of Strings and returns the differences as a list of {@link DiffChunk} objects.
+	 * 
+	 * @param linesA A-version of the text (usually the old one)
+	 * @param linesB B-version of the text (usually the new one)
+	 * @param options comparison settings
+	 * @return Returns a array of Items that describe the differences.
+	 */
+	public static Result diffText(String[] linesA, String[] linesB, DiffOptions options) {
+		return diffPacked(new StringLines(linesA), new StringLines(linesB), options).toList();
+	}
+
+	/**
+	 * Same as {@link #diffText(String[], String[], DiffOptions)} with {@link DiffOptions#defaultOptions}.
+	 */
+	public static Result diffText(String[] linesA, String[] linesB) {
+		return diffText(linesA, linesB, DiffOptions.defaultOptions);
 	}
 
 	/**
@@ -153,42 +217,65 @@ public class Diff {
 		}
 	}
 
+	private static boolean[] usedCodes(DiffData data, int codeCount) {
+		boolean[] used = new boolean[codeCount+1];
+		for(int i = 0; i<data.length; i++)
+			used[data.data[i]] = true;
+		return used;
+	}
+
 	/**
-	 * This function converts all textlines of the text into unique numbers for
-	 * every unique textline so further work can work only with simple numbers.
+	 * Marks lines that have no match in the other version as modified and
+	 * removes them from the sequence. This is what keeps GNU diff fast on files
+	 * with many unique lines.
 	 * 
-	 * @param lines the input text
-	 * @param h This externally initialized hashtable is used for storing all ever used textlines.
-	 * @return an array of integers.
+	 * @param data the full sequence
+	 * @param inOther flags for the line codes that occur in the other version
+	 * @return compacted sequence with {@link DiffData#index} mapping back to data,
+	 *   or data itself if nothing was discarded
 	 */
-	private static int[] diffCodes(String[] lines, HashMap<String, Integer> h) {
-		// get all codes of the text
-		int[] codes = new int[lines.length];
-		int lastUsedCode = h.size();
-		for(int i = 0; i<lines.length; ++i) {
-			String s = lines[i];
-			
-			if(trimSpace)
-				s = s.trim();
-			if(ignoreSpace)
-				s = s.replaceAll("\\s+", " ");
-			if(ignoreCase)
-				s = s.toLowerCase();
-			
-			Integer code = h.get(s);
-			if(code==null) {
-				lastUsedCode++;
-				code = lastUsedCode;
-				h.put(s, code);
+	private static DiffData discard(DiffData data, boolean[] inOther) {
+		int n = 0;
+		for(int i = 0; i<data.length; i++) {
+			if(inOther[data.data[i]])
+				n++;
+			else
+				data.modified[i] = true;
+		}
+		if(n==data.length)
+			return data;
+
+		int[] codes = new int[n];
+		int[] index = new int[n];
+		n = 0;
+		for(int i = 0; i<data.length; i++) {
+			if(inOther[data.data[i]]) {
+				codes[n] = data.data[i];
+				index[n] = i;
+				n++;
 			}
-			codes[i] = code;
 		}
-		return (codes);
+		DiffData res = new DiffData(codes);
+		res.index = index;
+		return res;
+	}
+
+	/**
+	 * Copies the modified flags of a compacted sequence back to the full sequence.
+	 */
+	private static void undiscard(DiffData data, DiffData compact) {
+		if(compact==data)
+			return;
+		for(int i = 0; i<compact.length; i++) {
+			if(compact.modified[i])
+				data.modified[compact.index[i]] = true;
+		}
 	}
 
 	/**
 	 * This is the algorithm to find the Shortest Middle Snake (SMS).
 	 * 
+	 * @param ctx search settings
 	 * @param data sequence A
 	 * @param lowerA lower bound of the actual range in DataA
 	 * @param upperA upper bound of the actual range in DataA (exclusive)
@@ -196,14 +283,15 @@ public class Diff {
 	 * @param lowerB lower bound of the actual range in DataB
 	 * @param upperB upper bound of the actual range in DataB (exclusive)
 	 * @param downVector a vector for the (0,0) to (x,y) search. Passed as a parameter for speed reasons.
+	 *   Must be large enough for the box, see {@link #lcs}.
 	 * @param upVector   a vector for the (u,v) to (N,M) search. Passed as a parameter for speed reasons.
 	 * @return a MiddleSnakeData record containing x,y and u,v
 	 */
-	private static MiddleSnakeData sms(DiffData dataA, int lowerA, int upperA, DiffData dataB, int lowerB, int upperB,
+	private static MiddleSnakeData sms(LcsContext ctx, DiffData dataA, int lowerA, int upperA, DiffData dataB, int lowerB, int upperB,
 			int[] downVector, int[] upVector) {
 
 		MiddleSnakeData ret = new MiddleSnakeData();
-		int max = dataA.length+dataB.length+1;
+		int max = downVector.length/2-1;
 
 		int downK = lowerA-lowerB; // the k-line to start the forward search
 		int upK = upperA-upperB; // the k-line to start the reverse search
@@ -219,6 +307,7 @@ public class Diff {
 		int upOffset = max-upK;
 
 		int maxD = ((upperA-lowerA+upperB-lowerB)/2)+1;
+		int limitD = ctx.costLimit>0 ? ctx.costLimit : maxD;
 
 		// Debug.Write(2, "SMS", String.Format("Search the box: A[{0}-{1}] to
 		// B[{2}-{3}]", LowerA, UpperA, LowerB, UpperB));
@@ -228,6 +317,8 @@ public class Diff {
 		upVector[upOffset+upK-1] = upperA;
 
 		for(int d = 0; d<=maxD; d++) {
+			ctx.cancel.check();
+
 			// Extend the forward path.
 			for(int k = downK-d; k<=downK+d; k += 2) {
 				// Debug.Write(0, "SMS", "extend forward path " + k.ToString());
@@ -296,17 +387,79 @@ public class Diff {
 					}
 				}
 			}
+			
+			if(d>=limitD && tooExpensive(dataA, lowerA, upperA, dataB, lowerB, upperB,
+					downVector, downOffset, downK, upVector, upOffset, upK, d, ret)) {
+				ctx.costLimitReached = true;
+				return ret;
+			}
 		}
 
 		throw new RuntimeException("the algorithm should never come here.");
 	}
 
+	/**
+	 * Heuristic used when the middle snake search is too expensive. Picks
+	 * either the forward diagonal that got the furthest from the top left corner,
+	 * or the reverse diagonal that got the furthest from the bottom right corner,
+	 * whichever made more progress.
+	 * 
+	 * @param d the number of completed search steps
+	 * @param ret receives the split point
+	 * @return true if the split point is inside the box and can be used
+	 */
+	private static boolean tooExpensive(DiffData dataA, int lowerA, int upperA, DiffData dataB, int lowerB, int upperB,
+			int[] downVector, int downOffset, int downK, int[] upVector, int upOffset, int upK, int d,
+			MiddleSnakeData ret) {
+		// forward diagonal that maximizes x+y
+		int downBest = -1, downX = 0;
+		for(int k = downK-d; k<=downK+d; k += 2) {
+			int x = Math.min(downVector[downOffset+k], upperA);
+			int y = x-k;
+			if(y>upperB) {
+				x = upperB+k;
+				y = upperB;
+			}
+			if(x+y>downBest) {
+				downBest = x+y;
+				downX = x;
+			}
+		}
+
+		// reverse diagonal that minimizes x+y
+		int upBest = Integer.MAX_VALUE, upX = 0;
+		for(int k = upK-d; k<=upK+d; k += 2) {
+			int x = Math.max(upVector[upOffset+k], lowerA);
+			int y = x-k;
+			if(y<lowerB) {
+				x = lowerB+k;
+				y = lowerB;
+			}
+			if(x+y<upBest) {
+				upBest = x+y;
+				upX = x;
+			}
+		}
+
+		if((upperA+upperB)-upBest<downBest-(lowerA+lowerB)) {
+			ret.x = downX;
+			ret.y = downBest-downX;
+		}
+		else {
+			ret.x = upX;
+			ret.y = upBest-upX;
+		}
+		// splitting at a corner would not make the boxes any smaller
+		return !(ret.x==lowerA && ret.y==lowerB) && !(ret.x==upperA && ret.y==upperB);
+	}
+
 	/**
 	 * This is the divide-and-conquer implementation of the longest
 	 * common-subsequence (LCS) algorithm. The published algorithm passes
 	 * recursively parts of the A and B sequences. To avoid copying these arrays the
 	 * lower and upper bounds are passed while the sequences stay constant.
 	 * 
+	 * @param ctx search settings
 	 * @param dataA sequence A
 	 * @param lowerA lower bound of the actual range in DataA
 	 * @param upperA upper bound of the actual range in DataA (exclusive)
@@ -314,12 +467,15 @@ public class Diff {
 	 * @param lowerB lower bound of the actual range in DataB
 	 * @param upperB upper bound of the actual range in DataB (exclusive)
 	 * @param downVector a vector for the (0,0) to (x,y) search. Passed as a parameter for speed reasons.
+	 *   The size is 2*max+2, where max is at least the number of lines in the box plus one.
 	 * @param upVector   a vector for the (u,v) to (N,M) search. Passed as a parameter for speed reasons.
+	 * @param fork fork large halves into {@link LcsTask}s. Must only be true inside a {@link ForkJoinPool}.
 	 */
-	private static void lcs(DiffData dataA, int lowerA, int upperA, DiffData dataB, int lowerB, int upperB,
-			int[] downVector, int[] upVector) {
+	static void lcs(LcsContext ctx, DiffData dataA, int lowerA, int upperA, DiffData dataB, int lowerB, int upperB,
+			int[] downVector, int[] upVector, boolean fork) {
 		// Debug.Write(2, "LCS", String.Format("Analyse the box: A[{0}-{1}] to
 		// B[{2}-{3}]", LowerA, UpperA, LowerB, UpperB));
+		ctx.cancel.check();
 
 		// Fast walkthrough equal lines at the start
 		while(lowerA<upperA && lowerB<upperB && dataA.data[lowerA]==dataB.data[lowerB]) {
@@ -347,13 +503,47 @@ public class Diff {
 		}
 		else {
 			// Find the middle snake and length of an optimal path for A and B
-			MiddleSnakeData smsrd = sms(dataA, lowerA, upperA, dataB, lowerB, upperB, downVector, upVector);
+			MiddleSnakeData smsrd = sms(ctx, dataA, lowerA, upperA, dataB, lowerB, upperB, downVector, upVector);
 			// Debug.Write(2, "MiddleSnakeData", String.Format("{0},{1}", smsrd.x,
 			// smsrd.y));
 
 			// The path is from LowerX to (x,y) and (x,y) to UpperX
-			lcs(dataA, lowerA, smsrd.x, dataB, lowerB, smsrd.y, downVector, upVector);
-			lcs(dataA, smsrd.x, upperA, dataB, smsrd.y, upperB, downVector, upVector);
+			if(fork && (upperA-lowerA)+(upperB-lowerB)>=ctx.parallelThreshold) {
+				// the halves do not overlap, so they can be searched concurrently
+				ForkJoinTask.invokeAll(
+						new LcsTask(ctx, dataA, lowerA, smsrd.x, dataB, lowerB, smsrd.y),
+						new LcsTask(ctx, dataA, smsrd.x, upperA, dataB, smsrd.y, upperB));
+			}
+			else {
+				lcs(ctx, dataA, lowerA, smsrd.x, dataB, lowerB, smsrd.y, downVector, upVector, false);
+				lcs(ctx, dataA, smsrd.x, upperA, dataB, smsrd.y, upperB, downVector, upVector, false);
+			}
+		}
+	}
+
+	/**
+	 * One box of the parallel LCS search. Each task has its own pair of vectors
+	 * sized for its box.
+	 */
+	private static class LcsTask extends RecursiveAction {
+		private final LcsContext ctx;
+		private final DiffData dataA, dataB;
+		private final int lowerA, upperA, lowerB, upperB;
+
+		public LcsTask(LcsContext ctx, DiffData dataA, int lowerA, int upperA, DiffData dataB, int lowerB, int upperB) {
+			this.ctx = ctx;
+			this.dataA = dataA;
+			this.lowerA = lowerA;
+			this.upperA = upperA;
+			this.dataB = dataB;
+			this.lowerB = lowerB;
+			this.upperB = upperB;
+		}
+
+		@Override
+		protected void compute() {
+			int max = (upperA-lowerA)+(upperB-lowerB)+1;
+			lcs(ctx, dataA, lowerA, upperA, dataB, lowerB, upperB, new int[2*max+2], new int[2*max+2], true);
 		}
 	}
 
@@ -361,10 +551,10 @@ public class Diff {
 	 * Scan the tables of which lines are inserted and deleted, producing an edit
 	 * script in forward order.
 	 * 
-	 * @return dynamic array
+	 * @return packed array of chunks
 	 */
-	private static ArrayList<DiffChunk> createDiffs(DiffData dataA, DiffData dataB) {
-		ArrayList<DiffChunk> a = new ArrayList<>();
+	private static PackedDiff createDiffs(DiffData dataA, DiffData dataB) {
+		PackedDiff a = new PackedDiff();
 
 		int startA, startB;
 		int lineA, lineB;
@@ -381,7 +571,7 @@ public class Diff {
 				lineB++;
 			}
 			if((startA<lineA) || (startB<lineB)) {
-				a.add(new DiffChunk(DiffType.notChanged, startA, startB, lineA-startA));
+				a.add(DiffType.notChanged, startA, startB, lineA-startA);
 			}
 
 			// deleted lines
@@ -391,7 +581,7 @@ public class Diff {
 				lineA++;
 			}
 			if((startA<lineA) || (startB<lineB)) {
-				a.add(new DiffChunk(DiffType.deleted, startA, startB, lineA-startA));
+				a.add(DiffType.deleted, startA, startB, lineA-startA);
 			}
 
 			// inserted lines
@@ -401,17 +591,18 @@ public class Diff {
 				lineB++;
 			}
 			if((startA<lineA) || (startB<lineB)) {
-				a.add(new DiffChunk(DiffType.inserted, startA, startB, lineB-startB));
+				a.add(DiffType.inserted, startA, startB, lineB-startB);
 			}
 		}
 
+		a.trim();
 		return a;
 	}
 
 	/**
 	 * Data on one input file being compared.
 	 */
-	private static class DiffData {
+	static class DiffData {
 		// Number of elements (lines).
 		public int length;
 
@@ -424,6 +615,11 @@ public class Diff {
 		 */
 		public boolean[] modified;
 
+		/**
+		 * Positions in the full sequence if this is a compacted one, otherwise null.
+		 */
+		public int[] index = null;
+
 		/**
 		 * Initialize the Diff-Data buffer.
 		 * 
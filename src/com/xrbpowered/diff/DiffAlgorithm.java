@@ -0,0 +1,5 @@
+package com.xrbpowered.diff;
+
+public enum DiffAlgorithm {
+	myers, histogram;
+}
@@ -0,0 +1,378 @@
+package com.xrbpowered.diff;
+
+import java.io.IOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.xrbpowered.utils.CancelToken;
+import com.xrbpowered.utils.TaskInterruptedException;
+
+/**
+ * Memory-bounded LRU cache of file diffs. Entries are keyed by the SHA-256 of
+ * both files and the {@link DiffOptions} that change the text diff, so a pair is found again even if the
+ * files have been copied or renamed. The hash of each path is remembered
+ * together with the file size and modification time, so a pair that has not
+ * changed on disk is found without reading the files.
+ * <p>
+ * All methods are thread-safe.
+ */
+public class DiffCache {
+
+	public static final long defaultMaxBytes = 64L*1024L*1024L;
+
+	/**
+	 * Loaded files and their differences.
+	 */
+	public static class Entry {
+		public final TextLines linesA;
+		public final TextLines linesB;
+		public final PackedDiff diff;
+
+		public Entry(TextLines linesA, TextLines linesB, PackedDiff diff) {
+			this.linesA = linesA;
+			this.linesB = linesB;
+			this.diff = diff;
+		}
+
+		public long sizeInBytes() {
+			return 32L+linesA.sizeInBytes()+linesB.sizeInBytes()+diff.sizeInBytes();
+		}
+	}
+
+	private static final class ContentHash {
+		public final byte[] hash;
+
+		public ContentHash(byte[] hash) {
+			this.hash = hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return (obj instanceof ContentHash) && Arrays.equals(hash, ((ContentHash) obj).hash);
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(hash);
+		}
+	}
+
+	// hash of the missing side of an inserted or deleted file
+	private static final ContentHash noFile = new ContentHash(new byte[0]);
+
+	private static final class Key {
+		public final ContentHash hashA, hashB;
+		public final DiffOptions options;
+
+		public Key(ContentHash hashA, ContentHash hashB, DiffOptions options) {
+			this.hashA = hashA;
+			this.hashB = hashB;
+			this.options = options;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof Key))
+				return false;
+			Key k = (Key) obj;
+			return hashA.equals(k.hashA) && hashB.equals(k.hashB) && options.sameTextDiff(k.options);
+		}
+
+		@Override
+		public int hashCode() {
+			return (hashA.hashCode()*31+hashB.hashCode())*31+options.textDiffHashCode();
+		}
+	}
+
+	private static final class FileStamp {
+		public final long size;
+		public final long lastModified;
+		public final ContentHash hash;
+
+		public FileStamp(long size, long lastModified, ContentHash hash) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.hash = hash;
+		}
+	}
+
+	private static final class Loaded {
+		public final TextLines lines;
+		public final ContentHash hash;
+
+		public Loaded(TextLines lines, ContentHash hash) {
+			this.lines = lines;
+			this.hash = hash;
+		}
+	}
+
+	/**
+	 * Interval of checking the cancel token while waiting for another thread, in milliseconds.
+	 */
+	private static final long awaitCheck = 50L;
+
+	/**
+	 * Pair of files being compared, other threads asking for the same pair wait for the result.
+	 */
+	private static final class Pair {
+		public final String pathA, pathB;
+		public final DiffOptions options;
+
+		public Pair(String pathA, String pathB, DiffOptions options) {
+			this.pathA = pathA;
+			this.pathB = pathB;
+			this.options = options;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof Pair))
+				return false;
+			Pair p = (Pair) obj;
+			return pathA.equals(p.pathA) && pathB.equals(p.pathB) && options.sameTextDiff(p.options);
+		}
+
+		@Override
+		public int hashCode() {
+			return (pathA.hashCode()*31+pathB.hashCode())*31+options.textDiffHashCode();
+		}
+	}
+
+	public final long maxBytes;
+
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private final HashMap<String, FileStamp> stamps = new HashMap<>();
+	private final HashMap<Pair, CompletableFuture<Entry>> inFlight = new HashMap<>();
+	private long sizeInBytes = 0L;
+
+	public DiffCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	public DiffCache() {
+		this(defaultMaxBytes);
+	}
+
+	/**
+	 * Returns the cached differences between two files, or loads and compares them.
+	 * If the same pair is being compared by another thread, waits for its result instead.
+	 *
+	 * @param pathA A-version of the file, or empty string if there is none
+	 * @param pathB B-version of the file, or empty string if there is none
+	 * @param options comparison settings
+	 * @param cancel token checked while comparing, can be null
+	 * @throws IOException if one of the files cannot be loaded
+	 * @throws TaskInterruptedException if the token is cancelled or the thread is interrupted
+	 */
+	public Entry diff(String pathA, String pathB, DiffOptions options, CancelToken cancel) throws IOException {
+		ContentHash hashA = knownHash(pathA);
+		ContentHash hashB = knownHash(pathB);
+		if(hashA!=null && hashB!=null) {
+			Entry e = get(new Key(hashA, hashB, options));
+			if(e!=null)
+				return e;
+		}
+
+		Pair pair = new Pair(pathA, pathB, options);
+		for(;;) {
+			CompletableFuture<Entry> f;
+			boolean owner = false;
+			synchronized(this) {
+				f = inFlight.get(pair);
+				if(f==null) {
+					f = new CompletableFuture<>();
+					inFlight.put(pair, f);
+					owner = true;
+				}
+			}
+			if(owner) {
+				try {
+					Entry e = load(pathA, pathB, options, cancel);
+					f.complete(e);
+					return e;
+				}
+				catch(IOException e) {
+					// an interrupted read is not a problem with the file: others compare the pair again
+					if(e instanceof ClosedByInterruptException || cancel!=null && cancel.isCancelled() ||
+							Thread.currentThread().isInterrupted()) {
+						TaskInterruptedException t = new TaskInterruptedException();
+						f.completeExceptionally(t);
+						throw t;
+					}
+					f.completeExceptionally(e);
+					throw e;
+				}
+				catch(RuntimeException e) {
+					f.completeExceptionally(e);
+					throw e;
+				}
+				finally {
+					synchronized(this) {
+						inFlight.remove(pair);
+					}
+				}
+			}
+			try {
+				return await(f, cancel);
+			}
+			catch(TaskInterruptedException e) {
+				// the other thread has been cancelled, compare the pair here unless this one is too
+				if(cancel!=null)
+					cancel.check();
+				TaskInterruptedException.check();
+			}
+		}
+	}
+
+	private static Entry await(CompletableFuture<Entry> f, CancelToken cancel) throws IOException {
+		for(;;) {
+			if(cancel!=null)
+				cancel.check();
+			try {
+				return f.get(awaitCheck, TimeUnit.MILLISECONDS);
+			}
+			catch(TimeoutException e) {
+			}
+			catch(InterruptedException e) {
+				// keep the flag for the caller to tell this from a cancelled owner
+				Thread.currentThread().interrupt();
+				throw new TaskInterruptedException();
+			}
+			catch(ExecutionException e) {
+				Throwable t = e.getCause();
+				if(t instanceof IOException)
+					throw (IOException) t;
+				if(t instanceof RuntimeException)
+					throw (RuntimeException) t;
+				throw new RuntimeException(t);
+			}
+		}
+	}
+
+	private Entry load(String pathA, String pathB, DiffOptions options, CancelToken cancel) throws IOException {
+		Loaded a = load(pathA);
+		Loaded b = load(pathB);
+		Key key = new Key(a.hash, b.hash, options);
+		Entry e = get(key);
+		if(e!=null)
+			return e;
+		e = new Entry(a.lines, b.lines, Diff.diffPacked(a.lines, b.lines, options, cancel));
+		put(key, e);
+		return e;
+	}
+
+	/**
+	 * Looks up the differences without loading the files.
+	 *
+	 * @return cached entry or null if the pair is not cached or one of the files has changed
+	 */
+	public Entry get(String pathA, String pathB, DiffOptions options) {
+		ContentHash hashA = knownHash(pathA);
+		ContentHash hashB = knownHash(pathB);
+		if(hashA==null || hashB==null)
+			return null;
+		return get(new Key(hashA, hashB, options));
+	}
+
+	private synchronized Entry get(Key key) {
+		return entries.get(key);
+	}
+
+	private synchronized void put(Key key, Entry e) {
+		long size = e.sizeInBytes();
+		if(size>maxBytes) {
+			pruneStamps();
+			return;
+		}
+		Entry old = entries.put(key, e);
+		if(old!=null)
+			sizeInBytes -= old.sizeInBytes();
+		sizeInBytes += size;
+
+		Iterator<Entry> it = entries.values().iterator();
+		boolean evicted = false;
+		while(sizeInBytes>maxBytes && it.hasNext()) {
+			sizeInBytes -= it.next().sizeInBytes();
+			it.remove();
+			evicted = true;
+		}
+		if(evicted)
+			pruneStamps();
+	}
+
+	/**
+	 * Forgets the paths whose content is no longer in any entry.
+	 */
+	private void pruneStamps() {
+		HashSet<ContentHash> live = new HashSet<>();
+		for(Key k : entries.keySet()) {
+			live.add(k.hashA);
+			live.add(k.hashB);
+		}
+		stamps.values().removeIf(stamp -> !live.contains(stamp.hash));
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		stamps.clear();
+		sizeInBytes = 0L;
+	}
+
+	/**
+	 * @return estimated memory used by the cached entries in bytes
+	 */
+	public synchronized long sizeInBytes() {
+		return sizeInBytes;
+	}
+
+	/**
+	 * @return content hash of the file if it has been loaded before and has not changed since, otherwise null
+	 */
+	private ContentHash knownHash(String path) {
+		if(path.isEmpty())
+			return noFile;
+		FileStamp stamp;
+		synchronized(this) {
+			stamp = stamps.get(path);
+		}
+		if(stamp==null)
+			return null;
+		try {
+			BasicFileAttributes attr = Files.readAttributes(Paths.get(path), BasicFileAttributes.class);
+			if(attr.size()==stamp.size && attr.lastModifiedTime().toMillis()==stamp.lastModified)
+				return stamp.hash;
+		}
+		catch(IOException e) {
+		}
+		return null;
+	}
+
+	private Loaded load(String path) throws IOException {
+		if(path.isEmpty())
+			return new Loaded(TextLines.empty, noFile);
+		Path p = Paths.get(path);
+		// attributes are read before the content: if the file changes while loading, the stamp is out of date
+		BasicFileAttributes attr = Files.readAttributes(p, BasicFileAttributes.class);
+		MessageDigest digest = HashCache.newDigest();
+		TextLines lines = ByteLines.load(path, digest);
+		ContentHash hash = new ContentHash(digest.digest());
+		synchronized(this) {
+			stamps.put(path, new FileStamp(attr.size(), attr.lastModifiedTime().toMillis(), hash));
+		}
+		return new Loaded(lines, hash);
+	}
+
+}
@@ -0,0 +1,178 @@
+package com.xrbpowered.diff;
+
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Immutable comparison settings. One instance can be shared by any number of
+ * {@link Diff} and {@link FolderDiff} runs on different threads.
+ */
+public class DiffOptions {
+
+	public static final DiffOptions defaultOptions = new Builder().build();
+
+	/**
+	 * When set to true, all leading and trailing whitespace characters
+	 * are stripped out before the comparison is done.
+	 */
+	public final boolean trimSpace;
+
+	/**
+	 * When set to true, all whitespace characters are converted to
+	 * a single space character before the comparison is done.
+	 */
+	public final boolean ignoreSpace;
+
+	/**
+	 * When set to true, all characters are converted to their lowercase
+	 * equivalence before the comparison is done.
+	 */
+	public final boolean ignoreCase;
+
+	/**
+	 * Algorithm used to find the differences. Myers is the reference,
+	 * histogram is faster on large files with many repeated lines.
+	 */
+	public final DiffAlgorithm algorithm;
+
+	/**
+	 * When set to true, the two halves of the Myers recursion are searched
+	 * in parallel on the common {@link ForkJoinPool}. The result is identical
+	 * to the sequential search.
+	 */
+	public final boolean parallel;
+
+	/**
+	 * Boxes with fewer lines (A and B together) than this are searched
+	 * sequentially even in parallel mode.
+	 */
+	public final int parallelThreshold;
+
+	/**
+	 * Edit cost after which the middle snake search gives up and splits the box
+	 * at the furthest reaching diagonal instead, like GNU diff does for
+	 * "too expensive" comparisons. The result is still a valid edit script but
+	 * may not be minimal. Zero or negative means no limit.
+	 */
+	public final int costLimit;
+
+	/**
+	 * Load .gitignore files found in the compared directories.
+	 */
+	public final boolean loadGitIgnore;
+
+	/**
+	 * Load diff.ignore files found in the compared directories.
+	 */
+	public final boolean loadDiffIgnore;
+
+	/**
+	 * Treat files with the same size and modification time as unchanged
+	 * without reading them, like the rsync quick check. Files that differ in
+	 * modification time only are still compared by content.
+	 */
+	public final boolean quickCheck;
+
+	/**
+	 * File of the persistent {@link HashCache}, or null to compare files by content every time.
+	 */
+	public final String hashCacheFile;
+
+	/**
+	 * Keep directory diffs up to date with changes on disk, see {@link FolderWatcher}.
+	 */
+	public final boolean watch;
+
+	private DiffOptions(Builder b) {
+		this.trimSpace = b.trimSpace;
+		this.ignoreSpace = b.ignoreSpace;
+		this.ignoreCase = b.ignoreCase;
+		this.algorithm = b.algorithm;
+		this.parallel = b.parallel;
+		this.parallelThreshold = b.parallelThreshold;
+		this.costLimit = b.costLimit;
+		this.loadGitIgnore = b.loadGitIgnore;
+		this.loadDiffIgnore = b.loadDiffIgnore;
+		this.quickCheck = b.quickCheck;
+		this.hashCacheFile = b.hashCacheFile;
+		this.watch = b.watch;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if(this==obj)
+			return true;
+		if(!(obj instanceof DiffOptions))
+			return false;
+		DiffOptions o = (DiffOptions) obj;
+		return trimSpace==o.trimSpace && ignoreSpace==o.ignoreSpace && ignoreCase==o.ignoreCase &&
+				algorithm==o.algorithm && parallel==o.parallel && parallelThreshold==o.parallelThreshold &&
+				costLimit==o.costLimit && loadGitIgnore==o.loadGitIgnore && loadDiffIgnore==o.loadDiffIgnore &&
+				quickCheck==o.quickCheck && Objects.equals(hashCacheFile, o.hashCacheFile) &&
+				watch==o.watch;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(trimSpace, ignoreSpace, ignoreCase, algorithm, parallel, parallelThreshold,
+				costLimit, loadGitIgnore, loadDiffIgnore, quickCheck, hashCacheFile, watch);
+	}
+
+	/**
+	 * Compares only the settings that change the differences between two texts.
+	 * The search speed settings and the settings of directory diffs are not compared.
+	 */
+	public boolean sameTextDiff(DiffOptions o) {
+		return trimSpace==o.trimSpace && ignoreSpace==o.ignoreSpace && ignoreCase==o.ignoreCase &&
+				algorithm==o.algorithm && costLimit==o.costLimit;
+	}
+
+	/**
+	 * Hash code consistent with {@link #sameTextDiff(DiffOptions)}.
+	 */
+	public int textDiffHashCode() {
+		return Objects.hash(trimSpace, ignoreSpace, ignoreCase, algorithm, costLimit);
+	}
+
+	/**
+	 * Mutable set of values for creating {@link DiffOptions}.
+	 * See the option fields for the meaning of each value.
+	 */
+	public static class Builder {
+		public boolean trimSpace = false;
+		public boolean ignoreSpace = false;
+		public boolean ignoreCase = false;
+		public DiffAlgorithm algorithm = DiffAlgorithm.myers;
+		public boolean parallel = false;
+		public int parallelThreshold = 8192;
+		public int costLimit = 4096;
+		public boolean loadGitIgnore = false;
+		public boolean loadDiffIgnore = true;
+		public boolean quickCheck = false;
+		public String hashCacheFile = null;
+		public boolean watch = false;
+
+		public Builder() {
+		}
+
+		public Builder(DiffOptions opt) {
+			this.trimSpace = opt.trimSpace;
+			this.ignoreSpace = opt.ignoreSpace;
+			this.ignoreCase = opt.ignoreCase;
+			this.algorithm = opt.algorithm;
+			this.parallel = opt.parallel;
+			this.parallelThreshold = opt.parallelThreshold;
+			this.costLimit = opt.costLimit;
+			this.loadGitIgnore = opt.loadGitIgnore;
+			this.loadDiffIgnore = opt.loadDiffIgnore;
+			this.quickCheck = opt.quickCheck;
+			this.hashCacheFile = opt.hashCacheFile;
+			this.watch = opt.watch;
+		}
+
+		public DiffOptions build() {
+			return new DiffOptions(this);
+		}
+	}
+
+}
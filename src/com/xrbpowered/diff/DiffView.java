@@ -1,10 +1,6 @@
 package com.xrbpowered.diff;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.nio.charset.StandardCharsets;
 
 import com.xrbpowered.diff.ui.FileDiffBase;
 import com.xrbpowered.diff.ui.FolderDiffBase;
@@ -14,36 +10,7 @@ import com.xrbpowered.zoomui.swing.SwingWindowFactory;
 
 public class DiffView {
 
-	private static final int testEncodingLimit = 4096;
-	
-	public static String loadString(String path, boolean testEncoding) throws IOException, UnsupportedEncodingException {
-		FileInputStream f = new FileInputStream(path);
-		byte[] buf = new byte[f.available()];
-		f.read(buf);
-		f.close();
-		String s = new String(buf, StandardCharsets.UTF_8);
-		
-		if(testEncoding) {
-			byte[] test = s.getBytes(StandardCharsets.UTF_8);
-			boolean valid = true;
-			if(test.length==buf.length) {
-				for(int i=0; i<testEncodingLimit && i<test.length; i++) {
-					if(buf[i]!=test[i]) {
-						valid = false;
-						break;
-					}
-				}
-			}
-			else {
-				valid = false;
-			}
-			if(!valid)
-				throw new UnsupportedEncodingException();
-		}
-		
-		return s;
-	}
-
+	private static DiffOptions.Builder options = new DiffOptions.Builder();
 	private static boolean folder = false;
 	private static String pathA = null;
 	private static String pathB = null;
@@ -53,12 +20,18 @@ public class DiffView {
 		params.addStrParam(v -> pathA = v, "original");
 		params.addStrParam(v -> pathB = v, "updated");
 		params.addFlagParam("-r", v -> folder = v, "directory diff");
-		params.addFlagParam("-gitignore", v -> FolderDiff.loadGitIgnore = v, "load .gitignore from directories");
-		params.addFlagParam("-nodiffignore", v -> FolderDiff.loadGitIgnore = v, "do not load diff.ignore from directories");
+		params.addFlagParam("-gitignore", v -> options.loadGitIgnore = v, "load .gitignore from directories");
+		params.addFlagParam("-nodiffignore", v -> options.loadDiffIgnore = !v, "do not load diff.ignore from directories");
 		params.addStrParam("-i", v -> { Ignore.defaultIgnore = Ignore.load(new File(v), null, null); }, "global diff.ignore file");
-		params.addFlagParam("-trimspace", v -> Diff.trimSpace = v, "ignore leading or trailing whitespace on each line");
-		params.addFlagParam("-ignorespace", v -> Diff.ignoreSpace = v, "ignore difference in whitespace");
-		params.addFlagParam("-ignorecase", v -> Diff.ignoreCase = v, "ignore case");
+		params.addFlagParam("-quickcheck", v -> options.quickCheck = v, "assume files with the same size and modification time are unchanged");
+		params.addStrParam("-hashcache", v -> options.hashCacheFile = v, "file to keep content hashes in between directory diffs");
+		params.addFlagParam("-watch", v -> options.watch = v, "update directory diff when files change");
+		params.addFlagParam("-trimspace", v -> options.trimSpace = v, "ignore leading or trailing whitespace on each line");
+		params.addFlagParam("-ignorespace", v -> options.ignoreSpace = v, "ignore difference in whitespace");
+		params.addFlagParam("-ignorecase", v -> options.ignoreCase = v, "ignore case");
+		params.addFlagParam("-histogram", v -> options.algorithm = v ? DiffAlgorithm.histogram : DiffAlgorithm.myers, "use histogram diff instead of Myers");
+		params.addFlagParam("-parallel", v -> options.parallel = v, "search large files on all cores");
+		params.addIntParam("-costlimit", v -> options.costLimit = v, "edit cost after which the diff may be not minimal, 0 for no limit");
 		if(!params.parseParams(args))
 			System.exit(-1);
 		
@@ -71,9 +44,9 @@ public class DiffView {
 			}
 		};
 		if(folder)
-			new FolderDiffBase(frame.getContainer()).fileSel.setPaths(pathA, pathB);
+			new FolderDiffBase(frame.getContainer(), options.build()).fileSel.setPaths(pathA, pathB);
 		else
-			new FileDiffBase(frame.getContainer()).fileSel.setPaths(pathA, pathB);
+			new FileDiffBase(frame.getContainer(), options.build()).fileSel.setPaths(pathA, pathB);
 		frame.show();
 	}
 
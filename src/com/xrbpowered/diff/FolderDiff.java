@@ -1,29 +1,91 @@
 package com.xrbpowered.diff;
 
-import java.io.BufferedInputStream;
-import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
-import java.util.TreeSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.xrbpowered.utils.CancelToken;
 import com.xrbpowered.utils.TaskInterruptedException;
 
 public class FolderDiff {
 
-	public static boolean loadGitIgnore = false;
-	public static boolean loadDiffIgnore = true;
+	/**
+	 * Block size for comparing the content of small files.
+	 */
+	public static final int compareBlock = 64*1024;
 	
-	public static final int limitCompareFiles = 128*1024;
+	/**
+	 * Files of this size or larger are memory-mapped for comparison.
+	 */
+	public static final long mapCompareThreshold = 1024L*1024L;
+	
+	/**
+	 * Size of the mapped regions when comparing large files.
+	 */
+	public static final long mapCompareBlock = 64L*1024L*1024L;
+	
+	/**
+	 * Number of threads for the directory walk. The walk is mostly waiting
+	 * for the file system, so it uses more threads than there are cores.
+	 */
+	public static int walkThreads = Math.max(4, Runtime.getRuntime().availableProcessors());
+	
+	/**
+	 * Number of threads counting files in inserted and deleted directories.
+	 */
+	public static int countThreads = 2;
+	
+	/**
+	 * Notified from a counting thread when the size of a directory item is known.
+	 */
+	public interface CountListener {
+		public void countComplete(DiffItem item);
+	}
+	
+	/**
+	 * Receives results while {@link #compareFolders(Ignore)} is running. Called from
+	 * the walking threads once per directory, with the items found directly in it
+	 * in sorted order. Items of different directories arrive in no particular order.
+	 */
+	public interface ResultListener {
+		public void itemsFound(List<DiffItem> items);
+	}
 	
 	public class DiffItem {
 		public DiffType type;
 		public Path path;
 		public boolean isDir = false;
-		public int size = 1;
+		
+		/**
+		 * Number of files for directories, -1 while they are being counted.
+		 */
+		public volatile int size = 1;
 
 		public DiffItem(DiffType type, Path p) {
 			this.type = type;
@@ -44,96 +106,329 @@ public class FolderDiff {
 		}
 		
 		public DiffItem setDir(Path root, File dir, Ignore ignore) {
+			return setDir(root, dir.toPath(), ignore);
+		}
+		
+		private DiffItem setDir(Path root, Path dir, Ignore ignore) {
 			this.isDir = true;
-			this.size = countFiles(root, dir, ignore);
+			ExecutorService pool = countPool;
+			if(pool==null || pool.isShutdown()) {
+				this.size = countFiles(root, dir, ignore);
+				return this;
+			}
+			this.size = -1;
+			pool.execute(() -> {
+				try {
+					this.size = countFiles(root, dir, ignore);
+				}
+				catch(TaskInterruptedException e) {
+					return;
+				}
+				CountListener listener = countListener;
+				if(listener!=null)
+					listener.countComplete(this);
+			});
 			return this;
 		}
 	}
 	
+	/**
+	 * Directory entry with attributes read once when listing the directory.
+	 */
+	private static class Entry {
+		public final Path file;
+		public final Path path;
+		public final boolean isDir;
+		public final long size;
+		public final long lastModified;
+		
+		public Entry(Path root, Path file) {
+			this.file = file;
+			this.path = root.relativize(file);
+			BasicFileAttributes attr;
+			try {
+				attr = Files.readAttributes(file, BasicFileAttributes.class);
+			}
+			catch(IOException e) {
+				// broken link or no access: treated as a file that cannot be read
+				attr = null;
+			}
+			this.isDir = attr!=null && attr.isDirectory();
+			this.size = attr==null ? -1L : attr.size();
+			this.lastModified = attr==null ? 0L : attr.lastModifiedTime().toMillis();
+		}
+		
+		public String getName() {
+			return file.getFileName().toString();
+		}
+	}
+	
+	private static class FileHash {
+		public final long size;
+		public final long lastModified;
+		/**
+		 * Null if the file has been compared equal to another without being hashed.
+		 */
+		public final byte[] hash;
+		
+		public FileHash(Entry e, byte[] hash) {
+			this.size = e.size;
+			this.lastModified = e.lastModified;
+			this.hash = hash;
+		}
+	}
+	
+	/**
+	 * Directory listings and content hashes of one side. A listing can be passed to
+	 * another {@link FolderDiff}, so that the same tree is compared again without
+	 * being walked. Directories are listed when first needed; a directory that has been
+	 * listed is not checked for changes, except by {@link FolderDiff#update(Map)}.
+	 * Content hashes are computed when a file is compared for the second time, as most
+	 * files are compared once, and used while the file has the same size and modification time.
+	 * Safe to use from several threads.
+	 */
+	public static class Listing {
+		public final Path root;
+		
+		private final ConcurrentHashMap<Path, ArrayList<Entry>> dirs = new ConcurrentHashMap<>();
+		private final ConcurrentHashMap<Path, FileHash> hashes = new ConcurrentHashMap<>();
+		
+		public Listing(String path) {
+			this.root = makeRoot(path);
+		}
+		
+		private ArrayList<Entry> list(Path dir) {
+			ArrayList<Entry> list = dirs.get(dir);
+			if(list==null)
+				list = relist(dir);
+			return list;
+		}
+		
+		private ArrayList<Entry> relist(Path dir) {
+			ArrayList<Entry> list = listEntries(root, dir);
+			dirs.put(dir, list);
+			return list;
+		}
+		
+		/**
+		 * Lists the directory again without keeping the result.
+		 * 
+		 * @return names of entries added, removed or changed since the directory was listed,
+		 * 		or null if it has not been listed
+		 */
+		Set<String> changedNames(Path dir) {
+			ArrayList<Entry> old = dirs.get(dir);
+			if(old==null)
+				return null;
+			HashMap<String, Entry> cur = new HashMap<>();
+			for(Entry e : listEntries(root, dir))
+				cur.put(e.getName(), e);
+			HashSet<String> res = new HashSet<>();
+			for(Entry e : old) {
+				Entry c = cur.remove(e.getName());
+				if(c==null || c.isDir!=e.isDir || !c.isDir && (c.size!=e.size || c.lastModified!=e.lastModified))
+					res.add(e.getName());
+			}
+			res.addAll(cur.keySet());
+			return res;
+		}
+		
+		private FileHash known(Entry e) {
+			FileHash h = hashes.get(e.file);
+			return (h!=null && h.size==e.size && h.lastModified==e.lastModified) ? h : null;
+		}
+		
+		private void putHash(Entry e, byte[] hash) {
+			// a file changed again within the timestamp resolution would keep its stamp
+			if(System.currentTimeMillis()-e.lastModified<HashCache.racyInterval)
+				return;
+			hashes.put(e.file, new FileHash(e, hash));
+		}
+	}
+	
 	public final Path rootA, rootB;
+	public final Listing listingA, listingB;
+	public final DiffOptions options;
 	public final ArrayList<DiffItem> res = new ArrayList<>();
+	
+	/**
+	 * Cancels {@link #compareFolders(Ignore)} from any thread.
+	 */
+	public final CancelToken cancel = new CancelToken();
 
-	public int progress = 0;
-	public String currentDir = "";
+	private final AtomicInteger progress = new AtomicInteger();
+	// relative paths of the directories compared on both sides, the root is an empty path
+	private final Set<Path> pairedDirs = ConcurrentHashMap.newKeySet();
+	private Ignore baseIgnore = null;
+	// list directories again instead of using the listings, while updating after changes on disk
+	private volatile boolean relist = false;
+	private HashCache hashCache = null;
+	private volatile ExecutorService countPool = null;
+	
+	public volatile CountListener countListener = null;
+	public volatile ResultListener resultListener = null;
+	public volatile String currentDir = "";
 	
-	public FolderDiff(String pathA, String pathB) {
-		this.rootA = FolderDiff.makeRoot(pathA);
-		this.rootB = FolderDiff.makeRoot(pathB);
+	public FolderDiff(String pathA, String pathB, DiffOptions options) {
+		this(new Listing(pathA), new Listing(pathB), options);
+	}
+	
+	/**
+	 * Compares two trees reusing their listings from earlier diffs.
+	 */
+	public FolderDiff(Listing listingA, Listing listingB, DiffOptions options) {
+		this.listingA = listingA;
+		this.listingB = listingB;
+		this.rootA = listingA.root;
+		this.rootB = listingB.root;
+		this.options = options;
+	}
+	
+	private Listing side(Path root) {
+		return root.equals(rootA) ? listingA : listingB;
+	}
+	
+	private ArrayList<Entry> list(Listing side, Path dir) {
+		return relist ? side.relist(dir) : side.list(dir);
 	}
 	
 	public static Path makeRoot(String path) {
 		return new File(path).toPath().toAbsolutePath().normalize();
 	}
 	
-	private static String relativeName(Path root, File f) {
-		String s = root.relativize(f.toPath()).toString().replace(File.separator, "/");
+	private static String relativeName(Path root, Path f) {
+		String s = root.relativize(f).toString().replace(File.separator, "/");
 		return s.isEmpty() ? "." : s;
 	}
 	
-	private int countFiles(Path root, File dir, Ignore ignore) {
+	/**
+	 * @return number of files and directories visited so far
+	 */
+	public int getProgress() {
+		return progress.get();
+	}
+	
+	private void checkCancel() {
+		cancel.check();
 		TaskInterruptedException.check();
+	}
+	
+	private int countFiles(Path root, Path dir, Ignore ignore) {
+		checkCancel();
 		currentDir = relativeName(root, dir);
 		
-		String[] list = (dir==null) ? null : dir.list();
-		if(list==null)
-			return 0;
-		
-		ignore = expandIgnore(root, dir, ignore);
+		ArrayList<Entry> list = list(side(root), dir);
+		ignore = expandIgnore(root, dir, list, ignore);
 		
 		int sum = 0;
-		for(String name : list) {
-			if(name.equals(".") || name.equals(".."))
+		for(Entry e : list) {
+			if(ignore!=null && ignore.match(e.path, e.isDir))
 				continue;
-			File f = new File(dir, name);
-			boolean isDir = f.isDirectory();
-			if(ignore!=null) {
-				Path p = root.relativize(f.toPath());
-				if(ignore.match(p, f.isDirectory()))
-					continue;
-			}
-			if(isDir)
-				sum += countFiles(root, f, ignore);
+			if(e.isDir)
+				sum += countFiles(root, e.file, ignore);
 			else
 				sum++;
-			progress++;
+			progress.incrementAndGet();
 		}
 		return sum;
 	}
 	
-	private static TreeSet<Path> listPaths(Path root, File dir, Ignore ignore) {
-		TreeSet<Path> res = new TreeSet<>();
-		String[] list = (dir==null) ? null : dir.list();
-		if(list==null)
+	/**
+	 * Lists a directory with one attribute read per entry.
+	 * 
+	 * @return entries sorted by path, or an empty list if the directory cannot be read
+	 */
+	private static ArrayList<Entry> listEntries(Path root, Path dir) {
+		ArrayList<Entry> res = new ArrayList<>();
+		if(dir==null)
 			return res;
-		for(String name : list) {
-			if(name.equals(".") || name.equals(".."))
-				continue;
-			File f = new File(dir, name);
-			Path p = root.relativize(f.toPath());
-			if(ignore!=null && ignore.match(p, f.isDirectory()))
-				continue;
-			res.add(p);
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for(Path f : stream)
+				res.add(new Entry(root, f));
+		}
+		catch(IOException | DirectoryIteratorException e) {
+			return new ArrayList<>();
 		}
+		res.sort((a, b) -> a.path.compareTo(b.path));
 		return res;
 	}
 	
-	private static boolean isModified(File fA, File fB) {
+	private static ArrayList<Entry> filter(ArrayList<Entry> list, Ignore ignore) {
+		if(ignore==null)
+			return list;
+		ArrayList<Entry> res = new ArrayList<>(list.size());
+		for(Entry e : list) {
+			if(!ignore.match(e.path, e.isDir))
+				res.add(e);
+		}
+		return res;
+	}
+	
+	private static void readBlock(FileChannel ch, ByteBuffer buf) throws IOException {
+		buf.clear();
+		while(buf.hasRemaining() && ch.read(buf)>=0)
+			;
+		buf.flip();
+	}
+	
+	/**
+	 * Compares file sizes, then the modification times in {@link DiffOptions#quickCheck} mode,
+	 * then the content hashes if either file has been compared before or there is
+	 * a {@link HashCache}, otherwise the whole content in blocks. Files of
+	 * {@link #mapCompareThreshold} bytes or more are memory-mapped
+	 * {@link #mapCompareBlock} bytes at a time. The hashes are kept in the listings,
+	 * so the files do not have to be read again when one side is reused.
+	 */
+	private boolean isModified(Entry eA, Entry eB) {
+		long size = eA.size;
+		if(size!=eB.size)
+			return true;
+		if(options.quickCheck && eA.lastModified==eB.lastModified)
+			return false;
+		FileHash knownA = listingA.known(eA);
+		FileHash knownB = listingB.known(eB);
+		if(knownA!=null || knownB!=null || hashCache!=null) {
+			try {
+				byte[] hashA = (knownA!=null && knownA.hash!=null) ? knownA.hash : hash(listingA, eA);
+				byte[] hashB = (knownB!=null && knownB.hash!=null) ? knownB.hash : hash(listingB, eB);
+				return !Arrays.equals(hashA, hashB);
+			}
+			catch(IOException e) {
+				System.err.println(e);
+				return false;
+			}
+		}
 		try(
-			FileInputStream inA = new FileInputStream(fA);
-			FileInputStream inB = new FileInputStream(fB);
-			DataInputStream dataA = new DataInputStream(new BufferedInputStream(inA, limitCompareFiles));
-			DataInputStream dataB = new DataInputStream(new BufferedInputStream(inB, limitCompareFiles));
+			FileChannel chA = FileChannel.open(eA.file, StandardOpenOption.READ);
+			FileChannel chB = FileChannel.open(eB.file, StandardOpenOption.READ);
 		) {
-			if(inA.available()!=inB.available())
+			if(chA.size()!=chB.size())
 				return true;
-			int bytes = 0;
-			while(dataA.available()>0) {
-				if(dataA.readByte()!=dataB.readByte())
-					return true;
-				bytes++;
-				if(bytes>limitCompareFiles)
-					break;
+			if(size>=mapCompareThreshold) {
+				for(long pos=0; pos<size; pos+=mapCompareBlock) {
+					checkCancel();
+					long len = Math.min(mapCompareBlock, size-pos);
+					ByteBuffer bufA = chA.map(FileChannel.MapMode.READ_ONLY, pos, len);
+					ByteBuffer bufB = chB.map(FileChannel.MapMode.READ_ONLY, pos, len);
+					if(!bufA.equals(bufB))
+						return true;
+				}
+			}
+			else {
+				ByteBuffer bufA = ByteBuffer.allocate(compareBlock);
+				ByteBuffer bufB = ByteBuffer.allocate(compareBlock);
+				for(;;) {
+					readBlock(chA, bufA);
+					readBlock(chB, bufB);
+					if(!bufA.equals(bufB))
+						return true;
+					if(bufA.limit()<compareBlock)
+						break;
+				}
 			}
+			// hashed if compared again
+			listingA.putHash(eA, null);
+			listingB.putHash(eB, null);
 			return false;
 		}
 		catch(IOException e) {
@@ -142,78 +437,416 @@ public class FolderDiff {
 		}
 	}
 	
-	private static Ignore expandIgnore(Path root, File dir, Ignore ignore) {
-		if(loadGitIgnore) {
-			File ignoreFile = new File(dir, ".gitignore");
-			if(ignoreFile.exists())
-				ignore = Ignore.load(ignoreFile, root, ignore);
-		}
-		if(loadDiffIgnore) {
-			File ignoreFile = new File(dir, "diff.ignore");
-			if(ignoreFile.exists())
-				ignore = Ignore.load(ignoreFile, root, ignore);
+	private byte[] hash(Listing side, Entry e) throws IOException {
+		byte[] hash = (hashCache!=null) ? hashCache.hash(e.file.toFile()) : HashCache.computeHash(e.file);
+		side.putHash(e, hash);
+		return hash;
+	}
+	
+	private static boolean contains(ArrayList<Entry> list, String name) {
+		for(Entry e : list) {
+			if(!e.isDir && e.getName().equals(name))
+				return true;
 		}
+		return false;
+	}
+	
+	/**
+	 * Adds ignore files found in the directory listing.
+	 */
+	private Ignore expandIgnore(Path root, Path dir, ArrayList<Entry> list, Ignore ignore) {
+		if(options.loadGitIgnore && contains(list, ".gitignore"))
+			ignore = Ignore.load(dir.resolve(".gitignore").toFile(), root, ignore);
+		if(options.loadDiffIgnore && contains(list, "diff.ignore"))
+			ignore = Ignore.load(dir.resolve("diff.ignore").toFile(), root, ignore);
+		return ignore;
+	}
+	
+	/**
+	 * Adds ignore files from the directory without listing it.
+	 */
+	private Ignore expandIgnore(Path root, Path dir, Ignore ignore) {
+		if(options.loadGitIgnore && Files.isRegularFile(dir.resolve(".gitignore")))
+			ignore = Ignore.load(dir.resolve(".gitignore").toFile(), root, ignore);
+		if(options.loadDiffIgnore && Files.isRegularFile(dir.resolve("diff.ignore")))
+			ignore = Ignore.load(dir.resolve("diff.ignore").toFile(), root, ignore);
 		return ignore;
 	}
 
-	public void compareFolders(File dirA, File dirB, Ignore ignore) {
-		TaskInterruptedException.check();
-		currentDir = relativeName(rootB, dirB);
-
-		ignore = expandIgnore(rootB, dirB, ignore);
+	private interface PairVisitor {
+		public void visit(Path p, Entry eA, Entry eB);
+	}
+	
+	/**
+	 * Merge-join of two sorted listings. Entries present on one side only
+	 * are visited with null on the other side.
+	 */
+	private static void mergeJoin(ArrayList<Entry> listA, ArrayList<Entry> listB, PairVisitor visitor) {
+		int a = 0;
+		int b = 0;
+		while(a<listA.size() || b<listB.size()) {
+			Entry eA = a<listA.size() ? listA.get(a) : null;
+			Entry eB = b<listB.size() ? listB.get(b) : null;
+			int cmp = (eA==null) ? 1 : (eB==null) ? -1 : eA.path.compareTo(eB.path);
+			if(cmp>0)
+				eA = null;
+			else if(cmp<0)
+				eB = null;
+			if(eA!=null)
+				a++;
+			if(eB!=null)
+				b++;
+			visitor.visit((eA!=null) ? eA.path : eB.path, eA, eB);
+		}
+	}
+	
+	/**
+	 * Compares one pair of entries and adds the resulting items.
+	 * 
+	 * @return true if both entries are directories, which are left to the caller
+	 */
+	private boolean compareEntries(Path p, Entry eA, Entry eB, Ignore ignore, ArrayList<DiffItem> items) {
+		DiffItem i = new DiffItem(p, eA!=null, eB!=null);
+		if(i.type==DiffType.notChanged) {
+			if(eA.isDir && eB.isDir) {
+				return true;
+			}
+			else if(eA.isDir) {
+				items.add(new DiffItem(DiffType.deleted, p).setDir(rootA, eA.file, ignore));
+				items.add(new DiffItem(DiffType.inserted, p));
+			}
+			else if(eB.isDir) {
+				items.add(new DiffItem(DiffType.deleted, p));
+				items.add(new DiffItem(DiffType.inserted, p).setDir(rootB, eB.file, ignore));
+			}
+			else {
+				if(isModified(eA, eB))
+					i.type = DiffType.modified;
+			}
+		}
+		else if(i.type==DiffType.deleted && eA.isDir) {
+			i.setDir(rootA, eA.file, ignore);
+		}
+		else if(i.type==DiffType.inserted && eB.isDir) {
+			i.setDir(rootB, eB.file, ignore);
+		}
 		
-		TreeSet<Path> setA = listPaths(rootA, dirA, ignore);
-		TreeSet<Path> setB = listPaths(rootB, dirB, ignore);
+		progress.incrementAndGet();
+		if(i.type!=DiffType.notChanged)
+			items.add(i);
+		return false;
+	}
+
+	/**
+	 * Compares one pair of directories. Subdirectories present on both sides are
+	 * compared by forked tasks, and their results are inserted at the position of
+	 * the subdirectory, so the order is the same as in a depth-first walk.
+	 */
+	private class CompareTask extends RecursiveTask<ArrayList<DiffItem>> {
+		private final Path dirA, dirB;
+		private final Ignore ignore;
+		// position in the parent's list of items
+		private int insertAt = 0;
 		
-		TreeSet<Path> union = new TreeSet<>();
-		union.addAll(setA);
-		union.addAll(setB);
+		public CompareTask(Path dirA, Path dirB, Ignore ignore) {
+			this.dirA = dirA;
+			this.dirB = dirB;
+			this.ignore = ignore;
+		}
 		
-		for(Path p : union) {
-			DiffItem i = new DiffItem(p, setA.contains(p), setB.contains(p));
+		@Override
+		protected ArrayList<DiffItem> compute() {
+			checkCancel();
+			currentDir = relativeName(rootB, dirB);
 			
-			String name = p.toFile().getName();
-			File fA = new File(dirA, name);
-			File fB = new File(dirB, name);
-
-			if(i.type==DiffType.notChanged) {
-				boolean isDirA = fA.isDirectory();
-				boolean isDirB = fB.isDirectory();
-				if(isDirA && isDirB) {
-					compareFolders(fA, fB, ignore);
-					continue;
-				}
-				else if(isDirA) {
-					res.add(new DiffItem(DiffType.deleted, p).setDir(rootA, fA, ignore));
-					res.add(new DiffItem(DiffType.inserted, p));
+			ArrayList<Entry> rawB = list(listingB, dirB);
+			Ignore ignore = expandIgnore(rootB, dirB, rawB, this.ignore);
+			ArrayList<Entry> listA = filter(list(listingA, dirA), ignore);
+			ArrayList<Entry> listB = filter(rawB, ignore);
+			
+			pairedDirs.add(rootB.relativize(dirB));
+			
+			ArrayList<DiffItem> items = new ArrayList<>();
+			ArrayList<CompareTask> subtasks = new ArrayList<>();
+			mergeJoin(listA, listB, (p, eA, eB) -> {
+				if(compareEntries(p, eA, eB, ignore, items)) {
+					CompareTask t = new CompareTask(eA.file, eB.file, ignore);
+					t.insertAt = items.size();
+					subtasks.add(t);
 				}
-				else if(isDirB) {
-					res.add(new DiffItem(DiffType.deleted, p));
-					res.add(new DiffItem(DiffType.inserted, p).setDir(rootB, fB, ignore));
+			});
+			ResultListener listener = resultListener;
+			if(listener!=null && !items.isEmpty())
+				listener.itemsFound(Collections.unmodifiableList(items));
+			if(subtasks.isEmpty())
+				return items;
+			
+			ForkJoinTask.invokeAll(subtasks);
+			ArrayList<DiffItem> res = new ArrayList<>();
+			int from = 0;
+			for(CompareTask t : subtasks) {
+				res.addAll(items.subList(from, t.insertAt));
+				res.addAll(t.join());
+				from = t.insertAt;
+			}
+			res.addAll(items.subList(from, items.size()));
+			return res;
+		}
+	}
+	
+	/**
+	 * Compares the root directories and fills {@link #res}. Subdirectories are
+	 * compared in parallel on {@link #walkThreads} threads. Inserted and deleted
+	 * directories are counted in the background after this method returns,
+	 * see {@link #countListener} and {@link #awaitCounts()}.
+	 * 
+	 * @throws TaskInterruptedException if the calling thread is interrupted or {@link #cancel} is cancelled
+	 */
+	public void compareFolders(Ignore ignore) {
+		progress.set(0);
+		currentDir = "";
+		baseIgnore = ignore;
+		pairedDirs.clear();
+		synchronized(res) {
+			res.clear();
+		}
+		if(options.hashCacheFile!=null)
+			hashCache = HashCache.load(new File(options.hashCacheFile));
+		countPool = Executors.newFixedThreadPool(countThreads, r -> {
+			Thread t = new Thread(r);
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			return t;
+		});
+		ForkJoinPool pool = new ForkJoinPool(walkThreads);
+		try {
+			ArrayList<DiffItem> found = pool.invoke(new CompareTask(rootA, rootB, ignore));
+			synchronized(res) {
+				res.addAll(found);
+			}
+		}
+		finally {
+			pool.shutdownNow();
+			// queued counts still run
+			countPool.shutdown();
+			// hashes are valid even if the walk was cancelled
+			if(hashCache!=null) {
+				hashCache.save();
+				hashCache = null;
+			}
+		}
+	}
+	
+	/**
+	 * Waits until all inserted and deleted directories have been counted.
+	 */
+	public void awaitCounts() throws InterruptedException {
+		ExecutorService pool = countPool;
+		if(pool!=null)
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	}
+	
+	private static final Path rootPath = Paths.get("");
+	
+	private static int depth(Path dir) {
+		return dir.toString().isEmpty() ? 0 : dir.getNameCount();
+	}
+	
+	/**
+	 * Depth-first order of {@link #res}: paths are compared name by name,
+	 * so the contents of a directory come right after the directory's position.
+	 */
+	public static int comparePaths(Path a, Path b) {
+		int n = Math.min(a.getNameCount(), b.getNameCount());
+		for(int i=0; i<n; i++) {
+			int c = a.getName(i).compareTo(b.getName(i));
+			if(c!=0)
+				return c;
+		}
+		return a.getNameCount() - b.getNameCount();
+	}
+	
+	/**
+	 * @return true if the relative path is inside the directory, but not the directory itself
+	 */
+	private static boolean isUnder(Path p, Path dir) {
+		int d = depth(dir);
+		return depth(p)>d && (d==0 || p.startsWith(dir));
+	}
+	
+	/**
+	 * @return copy of {@link #res} that is safe to use while the results are being updated
+	 */
+	public List<DiffItem> snapshot() {
+		synchronized(res) {
+			return new ArrayList<>(res);
+		}
+	}
+	
+	/**
+	 * @return relative paths of the directories present on both sides, the root is an empty path
+	 */
+	public Set<Path> getPairedDirs() {
+		return new HashSet<>(pairedDirs);
+	}
+	
+	/**
+	 * Compares the root directories again, see {@link #compareFolders(Ignore)}.
+	 * 
+	 * @return copy of the new results
+	 */
+	public List<DiffItem> rescan() {
+		relist = true;
+		try {
+			compareFolders(baseIgnore);
+		}
+		finally {
+			relist = false;
+		}
+		return snapshot();
+	}
+	
+	/**
+	 * Updates {@link #res} after changes on disk, reading only the directories that
+	 * have changed. Must be called after {@link #compareFolders(Ignore)} is complete,
+	 * and not from several threads at once.
+	 * <p>
+	 * Changes inside a directory that is present on one side only are taken as a change
+	 * of that directory in the nearest directory present on both sides.
+	 * Directories that have become present on both sides are compared in full, and so are
+	 * all subdirectories of a directory where an ignore file has changed.
+	 * 
+	 * @param changes relative paths of the changed directories (on either side) mapped to the names
+	 * 		of the changed entries, or to null to compare the directory in full
+	 * @return copy of the updated results
+	 * @throws TaskInterruptedException if the calling thread is interrupted or {@link #cancel} is cancelled
+	 */
+	public List<DiffItem> update(Map<Path, Set<String>> changes) {
+		// parents first: they may remove the directories below
+		TreeMap<Path, Set<String>> dirs = new TreeMap<>((a, b) -> {
+			int d = depth(a) - depth(b);
+			return d!=0 ? d : a.compareTo(b);
+		});
+		for(Map.Entry<Path, Set<String>> e : changes.entrySet()) {
+			Path dir = e.getKey();
+			Set<String> names = e.getValue();
+			while(depth(dir)>0 && !pairedDirs.contains(dir)) {
+				names = Collections.singleton(dir.getFileName().toString());
+				dir = (dir.getParent()!=null) ? dir.getParent() : rootPath;
+			}
+			if(dir.toString().isEmpty())
+				dir = rootPath;
+			if(!dirs.containsKey(dir))
+				dirs.put(dir, (names==null) ? null : new HashSet<>(names));
+			else if(names==null)
+				dirs.put(dir, null);
+			else if(dirs.get(dir)!=null)
+				dirs.get(dir).addAll(names);
+		}
+		relist = true;
+		try {
+			for(Map.Entry<Path, Set<String>> e : dirs.entrySet())
+				updateChanged(e.getKey(), e.getValue());
+		}
+		finally {
+			relist = false;
+		}
+		return snapshot();
+	}
+	
+	private void updateChanged(Path dir, Set<String> names) {
+		if(depth(dir)>0 && !pairedDirs.contains(dir))
+			return;
+		// new ignore rules apply to the whole subtree
+		if(names==null || options.loadGitIgnore && names.contains(".gitignore") ||
+				options.loadDiffIgnore && names.contains("diff.ignore")) {
+			for(Path p : getPairedDirs()) {
+				if(isUnder(p, dir))
+					pairedDirs.remove(p);
+			}
+			names = null;
+		}
+		updateDir(dir, names);
+	}
+	
+	/**
+	 * Lists one pair of directories again and replaces the items inside it. Items
+	 * of entries that have not changed and of subdirectories compared before are kept.
+	 */
+	private void updateDir(Path dir, Set<String> names) {
+		checkCancel();
+		currentDir = relativeName(rootPath, dir);
+		Path dirA = rootA.resolve(dir);
+		Path dirB = rootB.resolve(dir);
+		Ignore parentIgnore = baseIgnore;
+		Path d = rootB;
+		for(int i=0; i<depth(dir); i++) {
+			parentIgnore = expandIgnore(rootB, d, parentIgnore);
+			d = d.resolve(dir.getName(i));
+		}
+		
+		ArrayList<Entry> rawB = list(listingB, dirB);
+		Ignore ignore = expandIgnore(rootB, dirB, rawB, parentIgnore);
+		ArrayList<Entry> listA = filter(list(listingA, dirA), ignore);
+		ArrayList<Entry> listB = filter(rawB, ignore);
+		
+		// old items by entry: items of the entry itself and items inside it
+		int childDepth = depth(dir)+1;
+		HashMap<Path, ArrayList<DiffItem>> oldItems = new HashMap<>();
+		HashMap<Path, ArrayList<DiffItem>> oldInside = new HashMap<>();
+		synchronized(res) {
+			for(DiffItem i : res) {
+				if(!isUnder(i.path, dir))
+					continue;
+				Path child = i.path.subpath(0, childDepth);
+				(i.path.getNameCount()==childDepth ? oldItems : oldInside)
+						.computeIfAbsent(child, k -> new ArrayList<>()).add(i);
+			}
+		}
+		
+		ArrayList<DiffItem> items = new ArrayList<>();
+		HashSet<Path> paired = new HashSet<>();
+		mergeJoin(listA, listB, (p, eA, eB) -> {
+			if(eA!=null && eB!=null && eA.isDir && eB.isDir) {
+				paired.add(p);
+				if(pairedDirs.contains(p) && (names==null || !names.contains(p.getFileName().toString()))) {
+					ArrayList<DiffItem> inside = oldInside.get(p);
+					if(inside!=null)
+						items.addAll(inside);
 				}
 				else {
-					if(isModified(fA, fB))
-						i.type = DiffType.modified;
+					// new, or may have been deleted and created again
+					for(Path q : getPairedDirs()) {
+						if(isUnder(q, p) || q.equals(p))
+							pairedDirs.remove(q);
+					}
+					items.addAll(new CompareTask(eA.file, eB.file, ignore).invoke());
 				}
 			}
-			else if(i.type==DiffType.deleted && fA.isDirectory()) {
-				i.setDir(rootA, fA, ignore);
+			else if(names!=null && !names.contains(p.getFileName().toString()) && !pairedDirs.contains(p)) {
+				ArrayList<DiffItem> old = oldItems.get(p);
+				if(old!=null)
+					items.addAll(old);
 			}
-			else if(i.type==DiffType.inserted && fB.isDirectory()) {
-				i.setDir(rootB, fB, ignore);
+			else {
+				compareEntries(p, eA, eB, ignore, items);
 			}
-			
-			progress++;
-			if(i.type!=DiffType.notChanged)
-				res.add(i);
+		});
+		
+		for(Path p : getPairedDirs()) {
+			if(isUnder(p, dir) && !paired.contains(p.subpath(0, childDepth)))
+				pairedDirs.remove(p);
+		}
+		synchronized(res) {
+			int from = 0;
+			while(from<res.size() && comparePaths(res.get(from).path, dir)<0)
+				from++;
+			int to = from;
+			while(to<res.size() && isUnder(res.get(to).path, dir))
+				to++;
+			res.subList(from, to).clear();
+			res.addAll(from, items);
 		}
-	}
-	
-	public void compareFolders(Ignore ignore) {
-		progress = 0;
-		currentDir = "";
-		res.clear();
-		compareFolders(rootA.toFile(), rootB.toFile(), ignore);
 	}
 
 }
@@ -0,0 +1,362 @@
+package com.xrbpowered.diff;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.xrbpowered.diff.FolderDiff.DiffItem;
+import com.xrbpowered.utils.TaskInterruptedException;
+
+/**
+ * Keeps a {@link FolderDiff} up to date after {@link FolderDiff#compareFolders(Ignore)}
+ * is complete. The directories of both sides are registered with a {@link WatchService},
+ * and changes collected over {@link #collectDelay} are passed to {@link FolderDiff#update(Map)},
+ * so only the touched directories are read again. If the file system cannot be watched,
+ * the directories are listed every {@link #pollInterval} and compared with the previous listing.
+ */
+public class FolderWatcher extends Thread {
+
+	/**
+	 * Time to collect more changes after the first one, in milliseconds.
+	 */
+	public static int collectDelay = 300;
+
+	/**
+	 * Time between listings when the file system cannot be watched, in milliseconds.
+	 */
+	public static int pollInterval = 2000;
+
+	/**
+	 * Notified from the watcher thread with a copy of the updated results.
+	 */
+	public interface UpdateListener {
+		public void resultsUpdated(List<DiffItem> res);
+	}
+
+	public final FolderDiff diff;
+	private final UpdateListener listener;
+
+	private volatile WatchService watch = null;
+	private volatile boolean closed = false;
+	private final HashMap<WatchKey, Path> keys = new HashMap<>();
+	private HashSet<Path> watched = new HashSet<>();
+	// directories inside inserted and deleted directories, listed once per item
+	private IdentityHashMap<DiffItem, List<Path>> subtrees = new IdentityHashMap<>();
+
+	public FolderWatcher(FolderDiff diff, UpdateListener listener) {
+		this.diff = diff;
+		this.listener = listener;
+		setDaemon(true);
+	}
+
+	/**
+	 * Stops watching and cancels the update in progress. The diff should not be used after this.
+	 */
+	public void close() {
+		closed = true;
+		diff.cancel.cancel();
+		interrupt();
+		closeWatch();
+	}
+
+	private void closeWatch() {
+		WatchService w = watch;
+		if(w!=null) {
+			try {
+				w.close();
+			}
+			catch(IOException e) {
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			try {
+				watch = FileSystems.getDefault().newWatchService();
+				if(closed)
+					return;
+				watchLoop(updateWatched());
+			}
+			catch(IOException | UnsupportedOperationException e) {
+				if(closed)
+					return;
+				System.err.println("Cannot watch directories, polling instead: "+e);
+				closeWatch();
+				pollLoop();
+			}
+		}
+		catch(InterruptedException | ClosedWatchServiceException | TaskInterruptedException e) {
+		}
+		finally {
+			closeWatch();
+		}
+	}
+
+	private void watchLoop(HashMap<Path, Set<String>> changes) throws IOException, InterruptedException {
+		for(;;) {
+			boolean overflow = false;
+			if(changes.isEmpty())
+				overflow = collect(watch.take(), changes);
+			long end = System.currentTimeMillis()+collectDelay;
+			for(;;) {
+				long wait = end-System.currentTimeMillis();
+				WatchKey key = (wait>0) ? watch.poll(wait, TimeUnit.MILLISECONDS) : null;
+				if(key==null)
+					break;
+				overflow |= collect(key, changes);
+			}
+			apply(changes, overflow);
+			changes = updateWatched();
+		}
+	}
+
+	/**
+	 * @return true if events have been lost
+	 */
+	private boolean collect(WatchKey key, Map<Path, Set<String>> changes) {
+		Path dir = keys.get(key);
+		boolean overflow = false;
+		for(WatchEvent<?> e : key.pollEvents()) {
+			if(e.kind()==OVERFLOW)
+				overflow = true;
+			else if(dir!=null)
+				addChange(changes, dir, e.context().toString());
+		}
+		if(!key.reset()) {
+			// deleted or moved: register again if it comes back
+			keys.remove(key);
+			if(dir!=null)
+				watched.remove(dir);
+		}
+		return overflow;
+	}
+
+	private void pollLoop() throws InterruptedException {
+		HashSet<Path> dirs = observedDirs();
+		HashMap<Path, Map<String, Long>> stamps = listStamps(dirs);
+		HashMap<Path, Set<String>> initial = new HashMap<>();
+		for(Path dir : dirs)
+			addChanges(initial, dir, changedNames(dir));
+		apply(initial, false);
+		for(;;) {
+			Thread.sleep(pollInterval);
+			HashMap<Path, Map<String, Long>> next = listStamps(observedDirs());
+			HashMap<Path, Set<String>> changes = new HashMap<>();
+			for(Map.Entry<Path, Map<String, Long>> e : next.entrySet()) {
+				Map<String, Long> cur = e.getValue();
+				// entries of new directories may have changed since they were compared
+				Map<String, Long> old = stamps.get(e.getKey());
+				if(old==null) {
+					addChanges(changes, e.getKey(), cur.keySet());
+					continue;
+				}
+				for(Map.Entry<String, Long> f : cur.entrySet()) {
+					if(!Objects.equals(old.get(f.getKey()), f.getValue()))
+						addChange(changes, e.getKey(), f.getKey());
+				}
+				for(String name : old.keySet()) {
+					if(!cur.containsKey(name))
+						addChange(changes, e.getKey(), name);
+				}
+			}
+			apply(changes, false);
+			stamps = next;
+		}
+	}
+
+	private void apply(Map<Path, Set<String>> changes, boolean overflow) {
+		if(closed || changes.isEmpty() && !overflow)
+			return;
+		List<DiffItem> res = overflow ? diff.rescan() : diff.update(changes);
+		if(!closed)
+			listener.resultsUpdated(res);
+	}
+
+	private void addChange(Map<Path, Set<String>> changes, Path dir, String name) {
+		Path rel = relativize(dir);
+		if(rel!=null)
+			changes.computeIfAbsent(rel, k -> new HashSet<>()).add(name);
+	}
+
+	private void addChanges(Map<Path, Set<String>> changes, Path dir, Set<String> names) {
+		for(String name : names)
+			addChange(changes, dir, name);
+	}
+
+	/**
+	 * @return path relative to the root that contains the directory, or null if there is none
+	 */
+	private Path relativize(Path dir) {
+		Path root = rootOf(dir);
+		return (root==null) ? null : root.relativize(dir);
+	}
+
+	private Path rootOf(Path dir) {
+		Path root = null;
+		if(dir.startsWith(diff.rootA))
+			root = diff.rootA;
+		// nested roots: the inner one is used
+		if(dir.startsWith(diff.rootB) && (root==null || diff.rootB.getNameCount()>root.getNameCount()))
+			root = diff.rootB;
+		return root;
+	}
+
+	/**
+	 * Entries that differ from the listing used for the comparison, or all entries
+	 * if the directory has not been listed.
+	 */
+	private Set<String> changedNames(Path dir) {
+		FolderDiff.Listing listing = (rootOf(dir)==diff.rootB) ? diff.listingB : diff.listingA;
+		Set<String> names = listing.changedNames(dir);
+		return (names==null) ? listNames(dir) : names;
+	}
+
+	/**
+	 * Directories compared on both sides and all directories inside inserted or
+	 * deleted ones, as their changes change the file counts.
+	 */
+	private HashSet<Path> observedDirs() {
+		HashSet<Path> dirs = new HashSet<>();
+		for(Path p : diff.getPairedDirs()) {
+			dirs.add(diff.rootA.resolve(p));
+			dirs.add(diff.rootB.resolve(p));
+		}
+		IdentityHashMap<DiffItem, List<Path>> trees = new IdentityHashMap<>();
+		for(DiffItem i : diff.snapshot()) {
+			if(!i.isDir)
+				continue;
+			List<Path> tree = subtrees.get(i);
+			if(tree==null)
+				tree = listTree((i.type==DiffType.deleted ? diff.rootA : diff.rootB).resolve(i.path));
+			trees.put(i, tree);
+			dirs.addAll(tree);
+		}
+		subtrees = trees;
+		return dirs;
+	}
+
+	/**
+	 * Registers the directories that are not watched yet and cancels the ones
+	 * that are no longer observed.
+	 * 
+	 * @return entries of the new directories, which may have changed before they were registered
+	 */
+	private HashMap<Path, Set<String>> updateWatched() throws IOException {
+		HashSet<Path> dirs = observedDirs();
+		for(Iterator<Map.Entry<WatchKey, Path>> it = keys.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<WatchKey, Path> e = it.next();
+			if(!dirs.contains(e.getValue())) {
+				e.getKey().cancel();
+				it.remove();
+			}
+		}
+		watched.retainAll(dirs);
+		HashMap<Path, Set<String>> changes = new HashMap<>();
+		for(Path dir : dirs) {
+			if(watched.contains(dir))
+				continue;
+			try {
+				keys.put(dir.register(watch, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+			}
+			catch(NoSuchFileException | NotDirectoryException e) {
+				// removed since listed, the parent has an event for it
+				continue;
+			}
+			watched.add(dir);
+			addChanges(changes, dir, changedNames(dir));
+		}
+		return changes;
+	}
+
+	private static List<Path> listTree(Path dir) {
+		ArrayList<Path> res = new ArrayList<>();
+		try {
+			Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) {
+					res.add(d);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path f, IOException e) {
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		}
+		catch(IOException e) {
+		}
+		return res;
+	}
+
+	private static HashSet<String> listNames(Path dir) {
+		HashSet<String> res = new HashSet<>();
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for(Path f : stream)
+				res.add(f.getFileName().toString());
+		}
+		catch(IOException | DirectoryIteratorException e) {
+		}
+		return res;
+	}
+
+	/**
+	 * Lists the directories with a stamp of size and modification time for each file.
+	 * Directories that cannot be read are left out.
+	 */
+	private static HashMap<Path, Map<String, Long>> listStamps(Set<Path> dirs) {
+		HashMap<Path, Map<String, Long>> res = new HashMap<>();
+		for(Path dir : dirs) {
+			HashMap<String, Long> stamps = new HashMap<>();
+			try(DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+				for(Path f : stream) {
+					long stamp;
+					try {
+						BasicFileAttributes attr = Files.readAttributes(f, BasicFileAttributes.class);
+						// directories change by their entries, which are listed separately
+						stamp = attr.isDirectory() ? -1L : attr.lastModifiedTime().toMillis()*31L+attr.size();
+					}
+					catch(IOException e) {
+						stamp = 0L;
+					}
+					stamps.put(f.getFileName().toString(), stamp);
+				}
+			}
+			catch(IOException | DirectoryIteratorException e) {
+				continue;
+			}
+			res.put(dir, stamps);
+		}
+		return res;
+	}
+
+}
@@ -0,0 +1,211 @@
+package com.xrbpowered.diff;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent cache of SHA-256 content hashes. A stored hash is used as long as
+ * the file has the same size, modification time and inode (on systems that have
+ * inodes), otherwise the file is read and hashed again. Safe to use from
+ * several threads.
+ * <p>
+ * File format: magic number, number of entries, then for each entry the absolute
+ * path, size, modification time in milliseconds, inode and the 32-byte hash.
+ */
+public class HashCache {
+
+	private static final int magic = 0x44564843; // "DVHC"
+	private static final int hashLength = 32;
+	private static final int hashBlock = 64*1024;
+
+	private static final boolean unix = FileSystems.getDefault().supportedFileAttributeViews().contains("unix");
+
+	private static class Entry {
+		public final long size;
+		public final long lastModified;
+		public final long inode;
+		public final byte[] hash;
+
+		public Entry(long size, long lastModified, long inode, byte[] hash) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.inode = inode;
+			this.hash = hash;
+		}
+
+		public boolean matches(Entry e) {
+			return size==e.size && lastModified==e.lastModified && inode==e.inode;
+		}
+	}
+
+	/**
+	 * Hashes of files modified less than this many milliseconds ago are not stored:
+	 * a change that soon after may not change the modification time, and the
+	 * stored hash would be used for the new content.
+	 */
+	public static long racyInterval = 2000L;
+
+	public final File file;
+
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+	// paths hashed since the cache was loaded, other entries are dropped on save
+	private final Set<String> used = ConcurrentHashMap.newKeySet();
+	private volatile boolean modified = false;
+
+	private HashCache(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Returns the content hash of the file, reading the file only if it has
+	 * changed since the hash was stored.
+	 */
+	public byte[] hash(File f) throws IOException {
+		Path path = f.toPath().toAbsolutePath();
+		Entry stat = stat(path);
+		String key = path.toString();
+		used.add(key);
+		Entry e = entries.get(key);
+		if(e!=null && e.matches(stat))
+			return e.hash;
+
+		byte[] hash = computeHash(path);
+		if(System.currentTimeMillis()-stat.lastModified<racyInterval) {
+			if(entries.remove(key)!=null)
+				modified = true;
+			return hash;
+		}
+		entries.put(key, new Entry(stat.size, stat.lastModified, stat.inode, hash));
+		modified = true;
+		return hash;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	private static Entry stat(Path path) throws IOException {
+		if(unix) {
+			Map<String, Object> attr = Files.readAttributes(path, "unix:size,lastModifiedTime,ino");
+			return new Entry((Long) attr.get("size"), ((FileTime) attr.get("lastModifiedTime")).toMillis(),
+					(Long) attr.get("ino"), null);
+		}
+		else {
+			BasicFileAttributes attr = Files.readAttributes(path, BasicFileAttributes.class);
+			return new Entry(attr.size(), attr.lastModifiedTime().toMillis(), 0L, null);
+		}
+	}
+
+	/**
+	 * SHA-256 digest shared by all content hashes in the package, so that they can be compared.
+	 */
+	static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch(NoSuchAlgorithmException e) {
+			// every Java platform is required to support SHA-256
+			throw new RuntimeException(e);
+		}
+	}
+
+	static byte[] computeHash(Path path) throws IOException {
+		MessageDigest digest = newDigest();
+		try(FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+			ByteBuffer buf = ByteBuffer.allocate(hashBlock);
+			while(ch.read(buf)>=0) {
+				buf.flip();
+				digest.update(buf);
+				buf.clear();
+			}
+		}
+		return digest.digest();
+	}
+
+	/**
+	 * Loads the cache from a file. Returns an empty cache if the file does not
+	 * exist or cannot be read.
+	 */
+	public static HashCache load(File file) {
+		HashCache cache = new HashCache(file);
+		if(!file.exists())
+			return cache;
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if(in.readInt()!=magic)
+				throw new IOException("Not a hash cache file");
+			int count = in.readInt();
+			for(int i=0; i<count; i++) {
+				String path = in.readUTF();
+				long size = in.readLong();
+				long lastModified = in.readLong();
+				long inode = in.readLong();
+				byte[] hash = new byte[hashLength];
+				in.readFully(hash);
+				cache.entries.put(path, new Entry(size, lastModified, inode, hash));
+			}
+		}
+		catch(IOException e) {
+			System.err.println("Cannot load hash cache: "+e);
+			cache.entries.clear();
+		}
+		return cache;
+	}
+
+	/**
+	 * Saves the cache if any hashes have been added, updated or dropped. Hashes
+	 * that have not been used since the cache was loaded are dropped, so entries
+	 * of deleted files do not pile up. The file is replaced at once, so an
+	 * interrupted save does not leave a broken cache.
+	 */
+	public void save() {
+		if(entries.keySet().retainAll(used))
+			modified = true;
+		if(!modified)
+			return;
+		File tmp = new File(file.getPath()+".tmp");
+		try {
+			try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+				// snapshot, so that the count matches the entries written
+				Map<String, Entry> snapshot = new HashMap<>(entries);
+				out.writeInt(magic);
+				out.writeInt(snapshot.size());
+				for(Map.Entry<String, Entry> me : snapshot.entrySet()) {
+					Entry e = me.getValue();
+					out.writeUTF(me.getKey());
+					out.writeLong(e.size);
+					out.writeLong(e.lastModified);
+					out.writeLong(e.inode);
+					out.write(e.hash);
+				}
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			modified = false;
+		}
+		catch(IOException e) {
+			System.err.println("Cannot save hash cache: "+e);
+			tmp.delete();
+		}
+	}
+
+}
@@ -0,0 +1,192 @@
+package com.xrbpowered.diff;
+
+import java.util.Arrays;
+
+import com.xrbpowered.diff.Diff.DiffData;
+import com.xrbpowered.diff.Diff.LcsContext;
+
+/**
+ * Histogram diff as found in JGit: an extension of patience diff that anchors
+ * the recursion on the longest common region containing the least frequent
+ * lines. Regions made only of very common lines fall back to {@link Diff}'s
+ * Myers implementation.
+ */
+class HistogramDiff {
+
+	/**
+	 * Lines that occur more often than this in A are not used as anchors.
+	 */
+	public static final int maxChainLength = 64;
+
+	private final LcsContext ctx;
+	private final DiffData dataA, dataB;
+
+	// per-code histogram of the current region of A, valid when stamp matches gen
+	private final int[] head;
+	private final int[] count;
+	private final int[] stamp;
+	private int gen = 0;
+
+	// chain of positions in A with the same code (ascending), -1 terminated
+	private final int[] next;
+
+	// best common region found in the current pass
+	private int lcsA, lcsB, lcsEndA, lcsEndB;
+	private int lcsCount;
+	private boolean hasCommon;
+
+	private int[] downVector = null;
+	private int[] upVector = null;
+
+	public HistogramDiff(LcsContext ctx, DiffData dataA, DiffData dataB, int codeCount) {
+		this.ctx = ctx;
+		this.dataA = dataA;
+		this.dataB = dataB;
+		head = new int[codeCount+1];
+		count = new int[codeCount+1];
+		stamp = new int[codeCount+1];
+		next = new int[dataA.length];
+	}
+
+	public void diff() {
+		// explicit stack of regions instead of recursion: anchors can be found in any order
+		int[] stack = new int[64];
+		int top = 0;
+		stack[top++] = 0;
+		stack[top++] = dataA.length;
+		stack[top++] = 0;
+		stack[top++] = dataB.length;
+		while(top>0) {
+			ctx.cancel.check();
+			int upperB = stack[--top];
+			int lowerB = stack[--top];
+			int upperA = stack[--top];
+			int lowerA = stack[--top];
+
+			// Fast walkthrough equal lines at the start
+			while(lowerA<upperA && lowerB<upperB && dataA.data[lowerA]==dataB.data[lowerB]) {
+				lowerA++;
+				lowerB++;
+			}
+
+			// Fast walkthrough equal lines at the end
+			while(lowerA<upperA && lowerB<upperB && dataA.data[upperA-1]==dataB.data[upperB-1]) {
+				--upperA;
+				--upperB;
+			}
+
+			if(lowerA==upperA) {
+				while(lowerB<upperB)
+					dataB.modified[lowerB++] = true;
+			}
+			else if(lowerB==upperB) {
+				while(lowerA<upperA)
+					dataA.modified[lowerA++] = true;
+			}
+			else if(findRegion(lowerA, upperA, lowerB, upperB)) {
+				if(top+8>stack.length)
+					stack = Arrays.copyOf(stack, stack.length*2);
+				stack[top++] = lowerA;
+				stack[top++] = lcsA;
+				stack[top++] = lowerB;
+				stack[top++] = lcsB;
+				stack[top++] = lcsEndA;
+				stack[top++] = upperA;
+				stack[top++] = lcsEndB;
+				stack[top++] = upperB;
+			}
+			else if(hasCommon) {
+				// only frequent lines in common, use the reference algorithm
+				if(downVector==null) {
+					int max = dataA.length+dataB.length+1;
+					downVector = new int[2*max+2];
+					upVector = new int[2*max+2];
+				}
+				Diff.lcs(ctx, dataA, lowerA, upperA, dataB, lowerB, upperB, downVector, upVector, false);
+			}
+			else {
+				while(lowerA<upperA)
+					dataA.modified[lowerA++] = true;
+				while(lowerB<upperB)
+					dataB.modified[lowerB++] = true;
+			}
+		}
+	}
+
+	private boolean findRegion(int lowerA, int upperA, int lowerB, int upperB) {
+		int[] a = dataA.data;
+		int[] b = dataB.data;
+
+		gen++;
+		for(int i = upperA-1; i>=lowerA; i--) {
+			int code = a[i];
+			if(stamp[code]!=gen) {
+				stamp[code] = gen;
+				count[code] = 0;
+				head[code] = -1;
+			}
+			next[i] = head[code];
+			head[code] = i;
+			count[code]++;
+		}
+
+		lcsA = -1;
+		lcsEndA = -1;
+		lcsCount = maxChainLength+1;
+		hasCommon = false;
+		for(int bi = lowerB; bi<upperB;)
+			bi = tryRegion(bi, lowerA, upperA, lowerB, upperB);
+
+		return lcsA>=0 && lcsCount<=maxChainLength;
+	}
+
+	private int tryRegion(int bi, int lowerA, int upperA, int lowerB, int upperB) {
+		int[] a = dataA.data;
+		int[] b = dataB.data;
+
+		int nextB = bi+1;
+		int code = b[bi];
+		if(stamp[code]!=gen)
+			return nextB;
+		hasCommon = true;
+		if(count[code]>lcsCount)
+			return nextB;
+
+		int as = head[code];
+		while(as>=0) {
+			int np = next[as];
+			int bs = bi;
+			int ae = as+1;
+			int be = bs+1;
+			int rc = count[code];
+			while(lowerA<as && lowerB<bs && a[as-1]==b[bs-1]) {
+				as--;
+				bs--;
+				if(rc>1)
+					rc = Math.min(rc, count[a[as]]);
+			}
+			while(ae<upperA && be<upperB && a[ae]==b[be]) {
+				if(rc>1)
+					rc = Math.min(rc, count[a[ae]]);
+				ae++;
+				be++;
+			}
+			if(nextB<be)
+				nextB = be;
+			if(lcsEndA-lcsA<ae-as || rc<lcsCount) {
+				lcsA = as;
+				lcsB = bs;
+				lcsEndA = ae;
+				lcsEndB = be;
+				lcsCount = rc;
+			}
+
+			// skip positions already covered by this region
+			while(np>=0 && np<ae)
+				np = next[np];
+			as = np;
+		}
+		return nextB;
+	}
+
+}
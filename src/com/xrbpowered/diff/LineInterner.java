@@ -0,0 +1,185 @@
+package com.xrbpowered.diff;
+
+import java.util.Arrays;
+
+import com.xrbpowered.diff.TextLines.CharReader;
+
+/**
+ * Assigns a unique number to every distinct textline. Lines are hashed and
+ * compared in place under the whitespace and case rules, so no normalized
+ * copies of the strings are created. Codes start from 1.
+ */
+class LineInterner {
+
+	private final boolean trimSpace;
+	private final boolean ignoreSpace;
+	private final boolean ignoreCase;
+	private final boolean normalize;
+
+	/**
+	 * Reads the characters of a line as they look after trimming,
+	 * collapsing whitespace and converting to lowercase.
+	 */
+	private class NormalizedReader {
+		private CharReader reader;
+		private int ahead;
+
+		public void reset(CharReader reader, int index) {
+			this.reader = reader;
+			reader.reset(index, trimSpace);
+			ahead = reader.next();
+		}
+
+		public int next() {
+			int c = ahead;
+			if(c<0)
+				return -1;
+			ahead = reader.next();
+			if(ignoreSpace && isSpace(c)) {
+				while(ahead>=0 && isSpace(ahead))
+					ahead = reader.next();
+				return ' ';
+			}
+			return ignoreCase ? Character.toLowerCase((char) c) : c;
+		}
+	}
+
+	// open-addressing table of codes, 0 means empty slot
+	private int[] table;
+	private int mask;
+
+	// representative line and its hash for each code
+	private TextLines[] keySources;
+	private int[] keyLines;
+	private int[] hashes;
+	private int size = 0;
+
+	// readers for the representative lines, one per source
+	private TextLines[] sources = new TextLines[0];
+	private CharReader[] sourceReaders = new CharReader[0];
+
+	private final NormalizedReader normA = new NormalizedReader();
+	private final NormalizedReader normB = new NormalizedReader();
+
+	public LineInterner(boolean trimSpace, boolean ignoreSpace, boolean ignoreCase, int expectedLines) {
+		this.trimSpace = trimSpace;
+		this.ignoreSpace = ignoreSpace;
+		this.ignoreCase = ignoreCase;
+		this.normalize = trimSpace || ignoreSpace || ignoreCase;
+
+		int cap = 16;
+		while(cap<expectedLines*2)
+			cap <<= 1;
+		table = new int[cap];
+		mask = cap-1;
+		keySources = new TextLines[cap/2+1];
+		keyLines = new int[cap/2+1];
+		hashes = new int[cap/2+1];
+	}
+
+	/**
+	 * @return the number of distinct lines seen so far, which is also the largest code in use.
+	 */
+	public int size() {
+		return size;
+	}
+
+	public int[] codes(TextLines lines) {
+		CharReader reader = lines.reader();
+		int[] codes = new int[lines.size()];
+		for(int i = 0; i<codes.length; i++)
+			codes[i] = intern(lines, i, reader);
+		return codes;
+	}
+
+	private int intern(TextLines lines, int index, CharReader reader) {
+		int h = hash(lines, index, reader);
+		int slot = mix(h) & mask;
+		for(;;) {
+			int code = table[slot];
+			if(code==0)
+				break;
+			if(hashes[code]==h && equal(code, lines, index, reader))
+				return code;
+			slot = (slot+1) & mask;
+		}
+
+		size++;
+		if(size>=hashes.length) {
+			keySources = Arrays.copyOf(keySources, hashes.length*2);
+			keyLines = Arrays.copyOf(keyLines, hashes.length*2);
+			hashes = Arrays.copyOf(hashes, hashes.length*2);
+		}
+		keySources[size] = lines;
+		keyLines[size] = index;
+		hashes[size] = h;
+		table[slot] = size;
+		if(size*2>table.length)
+			rehash();
+		return size;
+	}
+
+	private void rehash() {
+		table = new int[table.length*2];
+		mask = table.length-1;
+		for(int code = 1; code<=size; code++) {
+			int slot = mix(hashes[code]) & mask;
+			while(table[slot]!=0)
+				slot = (slot+1) & mask;
+			table[slot] = code;
+		}
+	}
+
+	private static int mix(int h) {
+		h *= 0x9e3779b9;
+		return h ^ (h>>>16);
+	}
+
+	/**
+	 * Same as {@code \s} in regular expressions.
+	 */
+	private static boolean isSpace(int c) {
+		return c==' ' || c=='\t' || c=='\n' || c=='\u000b' || c=='\f' || c=='\r';
+	}
+
+	private CharReader sourceReader(TextLines src) {
+		for(int i = 0; i<sources.length; i++) {
+			if(sources[i]==src)
+				return sourceReaders[i];
+		}
+		int n = sources.length;
+		sources = Arrays.copyOf(sources, n+1);
+		sourceReaders = Arrays.copyOf(sourceReaders, n+1);
+		sources[n] = src;
+		sourceReaders[n] = src.reader();
+		return sourceReaders[n];
+	}
+
+	private int hash(TextLines lines, int index, CharReader reader) {
+		if(!normalize)
+			return lines.hash(index);
+
+		int h = 0;
+		normA.reset(reader, index);
+		for(int c; (c = normA.next())>=0;)
+			h = 31*h+c;
+		return h;
+	}
+
+	private boolean equal(int code, TextLines lines, int index, CharReader reader) {
+		TextLines src = keySources[code];
+		if(!normalize)
+			return src.equal(keyLines[code], lines, index);
+
+		normA.reset(sourceReader(src), keyLines[code]);
+		normB.reset(reader, index);
+		for(;;) {
+			int c = normA.next();
+			if(c!=normB.next())
+				return false;
+			if(c<0)
+				return true;
+		}
+	}
+
+}
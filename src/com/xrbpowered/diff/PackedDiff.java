@@ -0,0 +1,107 @@
+package com.xrbpowered.diff;
+
+import java.util.Arrays;
+
+import com.xrbpowered.diff.Diff.DiffChunk;
+
+/**
+ * Compact list of differences: each chunk is stored as four ints
+ * (type, startA, startB, length) in a single array.
+ */
+public class PackedDiff {
+
+	public interface ChunkVisitor {
+		public void chunk(DiffType type, int startA, int startB, int length);
+	}
+
+	private static final DiffType[] types = DiffType.values();
+
+	private int[] data;
+	private int size = 0;
+
+	/**
+	 * True if the {@link DiffOptions#costLimit} was hit, in which case the
+	 * differences are valid but possibly not minimal.
+	 */
+	public boolean costLimitReached = false;
+
+	public PackedDiff() {
+		data = new int[64];
+	}
+
+	void add(DiffType type, int startA, int startB, int length) {
+		int i = size*4;
+		if(i+4>data.length)
+			data = Arrays.copyOf(data, data.length*2);
+		data[i] = type.ordinal();
+		data[i+1] = startA;
+		data[i+2] = startB;
+		data[i+3] = length;
+		size++;
+	}
+
+	void trim() {
+		if(data.length>size*4)
+			data = Arrays.copyOf(data, size*4);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public DiffType type(int index) {
+		return types[data[index*4]];
+	}
+
+	public int startA(int index) {
+		return data[index*4+1];
+	}
+
+	public int startB(int index) {
+		return data[index*4+2];
+	}
+
+	public int length(int index) {
+		return data[index*4+3];
+	}
+
+	public DiffChunk get(int index) {
+		int i = index*4;
+		return new DiffChunk(types[data[i]], data[i+1], data[i+2], data[i+3]);
+	}
+
+	public void forEach(ChunkVisitor visitor) {
+		for(int i = 0; i<size*4; i += 4)
+			visitor.chunk(types[data[i]], data[i+1], data[i+2], data[i+3]);
+	}
+
+	/**
+	 * @return total number of lines in chunks of the given type
+	 */
+	public int countLines(DiffType type) {
+		int t = type.ordinal();
+		int sum = 0;
+		for(int i = 0; i<size*4; i += 4) {
+			if(data[i]==t)
+				sum += data[i+3];
+		}
+		return sum;
+	}
+
+	/**
+	 * @return estimated memory used by this object in bytes
+	 */
+	public long sizeInBytes() {
+		return 32L+data.length*4L;
+	}
+
+	public Diff.Result toList() {
+		Diff.Result res = new Diff.Result();
+		res.ensureCapacity(size);
+		for(int i = 0; i<size; i++)
+			res.add(get(i));
+		res.costLimitReached = costLimitReached;
+		return res;
+	}
+
+}
@@ -0,0 +1,70 @@
+package com.xrbpowered.diff;
+
+/**
+ * {@link TextLines} backed by an array of Strings.
+ */
+public class StringLines extends TextLines {
+
+	private final String[] lines;
+
+	public StringLines(String[] lines) {
+		this.lines = lines;
+	}
+
+	public static StringLines split(String text) {
+		return new StringLines(text.replace("\r", "").split("\n"));
+	}
+
+	@Override
+	public int size() {
+		return lines.length;
+	}
+
+	@Override
+	public String get(int index) {
+		return lines[index];
+	}
+
+	@Override
+	public long sizeInBytes() {
+		long size = 16L+lines.length*4L;
+		for(String s : lines)
+			size += 40L+s.length()*2L;
+		return size;
+	}
+
+	@Override
+	public boolean equal(int index, TextLines other, int otherIndex) {
+		if(other instanceof StringLines)
+			return lines[index].equals(((StringLines) other).lines[otherIndex]);
+		else
+			return super.equal(index, other, otherIndex);
+	}
+
+	@Override
+	public CharReader reader() {
+		return new CharReader() {
+			private String s;
+			private int pos, end;
+
+			@Override
+			public void reset(int index, boolean trim) {
+				s = lines[index];
+				pos = 0;
+				end = s.length();
+				if(trim) {
+					while(pos<end && s.charAt(pos)<=' ')
+						pos++;
+					while(end>pos && s.charAt(end-1)<=' ')
+						end--;
+				}
+			}
+
+			@Override
+			public int next() {
+				return pos<end ? s.charAt(pos++) : -1;
+			}
+		};
+	}
+
+}
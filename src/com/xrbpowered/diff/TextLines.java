@@ -0,0 +1,68 @@
+package com.xrbpowered.diff;
+
+/**
+ * Read-only list of textlines. Implementations may keep the text in any form
+ * and only create a String when a line is requested with {@link #get(int)}.
+ * Line content never includes CR or LF characters.
+ */
+public abstract class TextLines {
+
+	/**
+	 * Sequential access to the characters of one line without creating a String.
+	 */
+	public interface CharReader {
+		/**
+		 * Moves the reader to the start of the line.
+		 *
+		 * @param index line index
+		 * @param trim skip leading and trailing characters up to and including space, like {@link String#trim()}
+		 */
+		public void reset(int index, boolean trim);
+
+		/**
+		 * @return next character of the line, or -1 at the end of the line
+		 */
+		public int next();
+	}
+
+	public static final TextLines empty = new StringLines(new String[] {});
+
+	public abstract int size();
+
+	public abstract String get(int index);
+
+	public abstract CharReader reader();
+
+	/**
+	 * @return estimated memory used by the text and its index in bytes
+	 */
+	public abstract long sizeInBytes();
+
+	/**
+	 * Hash of the line content. Must be the same as {@code get(index).hashCode()}.
+	 */
+	public int hash(int index) {
+		return get(index).hashCode();
+	}
+
+	/**
+	 * Compares line content. Implementations can compare the other line
+	 * directly if it is of the same type and fall back to the readers otherwise.
+	 */
+	public boolean equal(int index, TextLines other, int otherIndex) {
+		return compare(reader(), index, other.reader(), otherIndex);
+	}
+
+	protected static boolean compare(CharReader a, int indexA, CharReader b, int indexB) {
+		a.reset(indexA, false);
+		b.reset(indexB, false);
+		for(;;) {
+			int c = a.next();
+			if(c!=b.next())
+				return false;
+			if(c<0)
+				return true;
+		}
+	}
+
+}
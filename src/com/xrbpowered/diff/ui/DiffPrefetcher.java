@@ -0,0 +1,130 @@
+package com.xrbpowered.diff.ui;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.xrbpowered.diff.DiffCache;
+import com.xrbpowered.diff.DiffOptions;
+import com.xrbpowered.utils.CancelToken;
+import com.xrbpowered.utils.TaskInterruptedException;
+
+/**
+ * Low priority background thread that fills the {@link DiffCache} with the
+ * files the user is likely to open next. Only one pair is compared at a time,
+ * and pairs that would take a large part of the cache are skipped.
+ */
+public class DiffPrefetcher extends Thread {
+
+	/**
+	 * Number of modified files after the selected one to prefetch.
+	 */
+	public static int prefetchCount = 3;
+
+	/**
+	 * Largest share of the cache a single prefetched pair can take, as a divisor
+	 * of {@link DiffCache#maxBytes}. Larger files are left for the user to open.
+	 */
+	public static int maxCacheShare = 8;
+
+	public final DiffCache cache;
+	public final DiffOptions options;
+
+	private List<String[]> queue = new ArrayList<>();
+	private String[] current = null;
+	private CancelToken cancel = null;
+
+	public DiffPrefetcher(DiffCache cache, DiffOptions options) {
+		this.cache = cache;
+		this.options = options;
+		setPriority(Thread.MIN_PRIORITY);
+		setDaemon(true);
+	}
+
+	/**
+	 * Replaces the queue with new pairs of file paths. The pair being compared
+	 * is cancelled unless it is the selected pair or is also in the new queue.
+	 * The selected pair is finished at normal priority, as the view waits for
+	 * it through {@link DiffCache#diff(String, String, DiffOptions, CancelToken)}.
+	 * 
+	 * @param selected pair of the selected item, or null
+	 * @param pairs pairs to compare next
+	 */
+	public synchronized void prefetch(String[] selected, List<String[]> pairs) {
+		queue = new ArrayList<>(pairs);
+		if(current!=null) {
+			boolean keep = false;
+			if(selected!=null && samePair(selected, current)) {
+				keep = true;
+				setPriority(Thread.NORM_PRIORITY);
+			}
+			for(String[] p : pairs) {
+				if(samePair(p, current)) {
+					keep = true;
+					queue.remove(p);
+					break;
+				}
+			}
+			if(!keep)
+				cancel.cancel();
+		}
+		notifyAll();
+	}
+
+	private static boolean samePair(String[] p, String[] q) {
+		return p[0].equals(q[0]) && p[1].equals(q[1]);
+	}
+
+	/**
+	 * Clears the queue and cancels the pair being compared.
+	 */
+	public synchronized void cancel() {
+		queue.clear();
+		if(cancel!=null)
+			cancel.cancel();
+	}
+
+	private synchronized String[] next() throws InterruptedException {
+		current = null;
+		cancel = null;
+		setPriority(Thread.MIN_PRIORITY);
+		while(queue.isEmpty())
+			wait();
+		current = queue.remove(0);
+		cancel = new CancelToken();
+		return current;
+	}
+
+	private boolean fitsBudget(String[] pair) {
+		long size = 0L;
+		for(String path : pair) {
+			if(!path.isEmpty())
+				size += new File(path).length();
+		}
+		return size<=cache.maxBytes/maxCacheShare;
+	}
+
+	@Override
+	public void run() {
+		try {
+			for(;;) {
+				String[] pair = next();
+				CancelToken token;
+				synchronized(this) {
+					token = cancel;
+				}
+				if(cache.get(pair[0], pair[1], options)!=null || !fitsBudget(pair))
+					continue;
+				try {
+					cache.diff(pair[0], pair[1], options, token);
+				}
+				catch(IOException | TaskInterruptedException e) {
+				}
+			}
+		}
+		catch(InterruptedException e) {
+		}
+	}
+
+}
@@ -3,7 +3,9 @@ package com.xrbpowered.diff.ui;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 
-import com.xrbpowered.diff.DiffView;
+import com.xrbpowered.diff.ByteLines;
+import com.xrbpowered.diff.DiffOptions;
+import com.xrbpowered.diff.TextLines;
 import com.xrbpowered.zoomui.UIContainer;
 import com.xrbpowered.zoomui.base.UILayersContainer;
 
@@ -15,11 +17,11 @@ public class FileDiffBase extends UIContainer implements DiffListener {
 	
 	private final UILayersContainer box;
 	
-	public FileDiffBase(UIContainer parent) {
+	public FileDiffBase(UIContainer parent, DiffOptions options) {
 		super(parent);
 		fileSel = new FileSelectionPane(parent, false).setDiffListener(this);
 		box = new UILayersContainer(this);
-		diffView = new FileDiffView.Area(box);
+		diffView = new FileDiffView.Area(box, options);
 		error = new ErrorOverlay(box);
 		error.setVisible(false);
 	}
@@ -37,29 +39,35 @@ public class FileDiffBase extends UIContainer implements DiffListener {
 		box.layout();
 	}
 	
-	private static String[] loadLines(String path, String[] old, ErrorOverlay error) {
+	public static TextLines loadLines(String path, TextLines old) throws IOException {
 		if(path==null)
 			return old;
 		if(path.isEmpty())
-			return new String[] {};
+			return TextLines.empty;
+		return ByteLines.load(path);
+	}
+	
+	public static String loadError(IOException e) {
+		if(e instanceof UnsupportedEncodingException)
+			return "Not a text file.";
+		else
+			return "Cannot read file.";
+	}
+	
+	private static TextLines loadLines(String path, TextLines old, ErrorOverlay error) {
 		try {
-			String text = DiffView.loadString(path, true);
-			return text.replace("\r", "").split("\n");
-		}
-		catch (UnsupportedEncodingException e) {
-			error.show("Not a valid UTF-8 text.");
-			return null;
+			return loadLines(path, old);
 		}
 		catch (IOException e) {
-			error.show("Cannot read file.");
+			error.show(loadError(e));
 			return null;
 		}
 	}
 	
 	public static void setDiff(FileDiffView viewer, String pathA, String pathB, ErrorOverlay error) {
 		error.setVisible(false);
-		String[] linesA = loadLines(pathA, viewer.linesA, error);
-		String[] linesB = loadLines(pathB, viewer.linesB, error);
+		TextLines linesA = loadLines(pathA, viewer.linesA, error);
+		TextLines linesB = loadLines(pathB, viewer.linesB, error);
 		viewer.setDiff(linesA, linesB);
 	}
 
@@ -4,10 +4,16 @@ import java.awt.Color;
 import java.awt.Font;
 import java.awt.FontMetrics;
 import java.awt.Rectangle;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import com.xrbpowered.diff.Diff;
+import com.xrbpowered.diff.DiffOptions;
 import com.xrbpowered.diff.DiffType;
+import com.xrbpowered.diff.PackedDiff;
+import com.xrbpowered.diff.TextLines;
 import com.xrbpowered.zoomui.GraphAssist;
 import com.xrbpowered.zoomui.UIContainer;
 import com.xrbpowered.zoomui.UIElement;
@@ -37,7 +43,6 @@ public class FileDiffView extends UIElement {
 	public class Line {
 		public DiffType type;
 		public int indexA, indexB;
-		public int width;
 		
 		public Line(DiffType type, int indexA, int indexB) {
 			this.type = type;
@@ -46,20 +51,35 @@ public class FileDiffView extends UIElement {
 		}
 		
 		public String text() {
-			String s = indexA>=0 ? linesA[indexA] : linesB[indexB];
-			return s.replace("\t", "    ");
+			String s = indexA>=0 ? linesA.get(indexA) : linesB.get(indexB);
+			return expandTabs(s);
 		}
 	}
 
+	/**
+	 * Tab-expanded text of a row and its width at the current font size.
+	 */
+	protected static class LineText {
+		public final String text;
+		public final int width;
+		
+		public LineText(String text, int width) {
+			this.text = text;
+			this.width = width;
+		}
+	}
+	
+	protected static final int maxCachedLines = 2048;
+
 	protected Font font = UITextBox.font;
 	protected float fontSizeUnscaled = UITextBox.font.getSize();
 
 	public static class Area extends UIScrollContainer {
 		public final FileDiffView viewer;
 		
-		public Area(UIContainer parent) {
+		public Area(UIContainer parent, DiffOptions options) {
 			super(parent);
-			this.viewer = new FileDiffView(getView());
+			this.viewer = new FileDiffView(getView(), options);
 		}
 		
 		@Override
@@ -97,16 +117,37 @@ public class FileDiffView extends UIElement {
 	protected FontMetrics fm = null;
 	protected float fontSize = 0f;
 	
-	private static final String[] empty = { };
-	public String[] linesA = empty;
-	public String[] linesB = empty;
-	protected ArrayList<Line> lines = new ArrayList<>();
+	// text width is measured in steps over several frames and remembered for each font size
+	protected static final int measureLinesPerFrame = 5000;
+	protected HashMap<Float, Integer> textWidths = new HashMap<>();
+	protected float measureFontSize = 0f;
+	protected int measuredLines = 0;
+	protected int textWidth = 0;
+	
+	// LRU of recently drawn rows, cleared when the font size or the diff changes
+	protected final LinkedHashMap<Integer, LineText> lineCache = new LinkedHashMap<Integer, LineText>(maxCachedLines, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, LineText> eldest) {
+			return size()>maxCachedLines;
+		}
+	};
+	
+	public final DiffOptions options;
+	
+	public TextLines linesA = TextLines.empty;
+	public TextLines linesB = TextLines.empty;
+	
+	// rows are not stored, they are looked up in the chunk list by their index
+	protected PackedDiff diff = new PackedDiff();
+	protected int[] chunkRows = {0};
+	protected int numLines = 0;
 	
 	protected int firstDeletion, firstInsertion;
 	protected int lastDeletion, lastInsertion;
 	
-	public FileDiffView(UIContainer parent) {
+	public FileDiffView(UIContainer parent, DiffOptions options) {
 		super(parent);
+		this.options = options;
 		// setFont(new Font("Consolas", Font.PLAIN, 11), 11f);
 		setFont(new Font("Verdana", Font.PLAIN, 10), 10f);
 	}
@@ -119,40 +160,67 @@ public class FileDiffView extends UIElement {
 		return (UIPanView) getParent();
 	}
 
-	public void setDiff(String[] linesA, String[] linesB) {
-		this.linesA = (linesA==null) ? empty : linesA;
-		this.linesB = (linesB==null) ? empty : linesB;
-		
-		ArrayList<Diff.DiffChunk> diff = Diff.diffText(this.linesA, this.linesB);
+	public void setDiff(TextLines linesA, TextLines linesB) {
+		linesA = (linesA==null) ? TextLines.empty : linesA;
+		linesB = (linesB==null) ? TextLines.empty : linesB;
+		setDiff(linesA, linesB, Diff.diffPacked(linesA, linesB, options));
+	}
+	
+	/**
+	 * Shows the differences that have already been computed, for example in a background thread.
+	 */
+	public void setDiff(TextLines linesA, TextLines linesB, PackedDiff diff) {
+		this.linesA = (linesA==null) ? TextLines.empty : linesA;
+		this.linesB = (linesB==null) ? TextLines.empty : linesB;
 		
 		firstDeletion = -1;
 		firstInsertion = -1;
 		lastDeletion = -1;
 		lastInsertion = -1;
-		lines.clear();
+		int[] chunkRows = new int[diff.size()+1];
 		int index = 0;
-		for(Diff.DiffChunk i : diff) {
-			for(int j=0; j<i.length; j++) {
-				lines.add(new Line(i.type,
-						i.type==DiffType.inserted ? -1 : i.startA+j,
-						i.type==DiffType.deleted ? -1 : i.startB+j));
-				if(i.type==DiffType.deleted) {
-					if(firstDeletion<0)
-						firstDeletion = index;
-					lastDeletion = index;
-				}
-				if(i.type==DiffType.inserted) {
-					if(firstInsertion<0)
-						firstInsertion = index;
-					lastInsertion = index;
-				}
-				index++;
+		for(int i=0; i<diff.size(); i++) {
+			chunkRows[i] = index;
+			int length = diff.length(i);
+			DiffType type = diff.type(i);
+			if(type==DiffType.deleted) {
+				if(firstDeletion<0)
+					firstDeletion = index;
+				lastDeletion = index+length-1;
 			}
+			if(type==DiffType.inserted) {
+				if(firstInsertion<0)
+					firstInsertion = index;
+				lastInsertion = index+length-1;
+			}
+			index += length;
 		}
+		chunkRows[diff.size()] = index;
+		this.diff = diff;
+		this.chunkRows = chunkRows;
+		this.numLines = index;
+		textWidths.clear();
+		lineCache.clear();
+		measureFontSize = 0f;
 		updateSize = true;
 		panView().setPan(0, 0);
 	}
 	
+	public int getNumLines() {
+		return numLines;
+	}
+	
+	public Line lineAt(int index) {
+		int chunk = Arrays.binarySearch(chunkRows, 0, diff.size(), index);
+		if(chunk<0)
+			chunk = -chunk-2;
+		int offs = index-chunkRows[chunk];
+		DiffType type = diff.type(chunk);
+		return new Line(type,
+				type==DiffType.inserted ? -1 : diff.startA(chunk)+offs,
+				type==DiffType.deleted ? -1 : diff.startB(chunk)+offs);
+	}
+	
 	@Override
 	public boolean isVisible(Rectangle clip) {
 		return isVisible();
@@ -170,7 +238,7 @@ public class FileDiffView extends UIElement {
 	}
 	
 	protected void updateMargins() {
-		xmargin = numberWidth(fm, Math.max(linesA.length+1, linesB.length+1), null, (int)(8/pixelScale));
+		xmargin = numberWidth(fm, Math.max(linesA.size()+1, linesB.size()+1), null, (int)(8/pixelScale));
 		x0 = xmargin*2+wpref;
 	}
 	
@@ -178,6 +246,7 @@ public class FileDiffView extends UIElement {
 		if(fm==null || fontSize!=this.fontSize) {
 			this.fontSize = fontSize;
 			updateFont(g);
+			lineCache.clear();
 			
 			descent = fm.getDescent();
 			lineHeight = fm.getAscent()+descent-1;
@@ -210,27 +279,19 @@ public class FileDiffView extends UIElement {
 			updateMargins();
 		
 		int y = y0;
-		float w = 0;
+		float w = measureTextWidth();
 		lastDisplayLine = displayLine;
-		for(int lineIndex = 0; lineIndex<lines.size(); lineIndex++) {
-			Line line = lines.get(lineIndex);
-			if(lineIndex>=displayLine && y-lineHeight<maxy) {
-				drawLine(g, lineIndex, y, line);
-				lastDisplayLine = lineIndex;
-				y += lineHeight;
-			}
-
-			if(line.width<0)
-				line.width = fm.stringWidth(line.text());
-			if(line.width>w)
-				w = line.width;
+		for(int lineIndex = displayLine; lineIndex<numLines && y-lineHeight<maxy; lineIndex++) {
+			drawLine(g, lineIndex, y, lineAt(lineIndex));
+			lastDisplayLine = lineIndex;
+			y += lineHeight;
 		}
 		if(y-lineHeight<maxy) {
 			fillRemainder(g, y);
 		}
 		
 		w = (w+x0*2)*pixelScale;
-		float h = lineHeight*lines.size()*pixelScale;
+		float h = lineHeight*numLines*pixelScale;
 		if(updateSize || getWidth()!=w || getHeight()!=h) {
 			panView().setPanRangeForClient(w, h);
 			if(w<getParent().getWidth())
@@ -244,6 +305,50 @@ public class FileDiffView extends UIElement {
 		g.finishPixelMode();
 	}
 	
+	/**
+	 * Measures the next few lines of both files at the current font size.
+	 * Keeps repainting until all lines are measured. Lines are measured
+	 * character by character, so they don't need to be decoded into Strings.
+	 * 
+	 * @return the largest text width found so far
+	 */
+	protected int measureTextWidth() {
+		if(measureFontSize!=fontSize) {
+			measureFontSize = fontSize;
+			Integer cached = textWidths.get(fontSize);
+			measuredLines = (cached==null) ? 0 : linesA.size()+linesB.size();
+			textWidth = (cached==null) ? 0 : cached;
+		}
+		
+		int total = linesA.size()+linesB.size();
+		if(measuredLines<total) {
+			int end = Math.min(total, measuredLines+measureLinesPerFrame);
+			TextLines.CharReader readerA = linesA.reader();
+			TextLines.CharReader readerB = linesB.reader();
+			for(; measuredLines<end; measuredLines++) {
+				TextLines.CharReader r;
+				if(measuredLines<linesA.size()) {
+					r = readerA;
+					r.reset(measuredLines, false);
+				}
+				else {
+					r = readerB;
+					r.reset(measuredLines-linesA.size(), false);
+				}
+				int w = 0;
+				for(int c; (c = r.next())>=0;)
+					w += (c=='\t') ? tabWidth : fm.charWidth((char) c);
+				if(w>textWidth)
+					textWidth = w;
+			}
+			if(measuredLines<total)
+				repaint();
+			else
+				textWidths.put(fontSize, textWidth);
+		}
+		return textWidth;
+	}
+	
 	protected void drawLine(GraphAssist g, int lineIndex, int y, Line line) {
 		int typeIndex = line.type.ordinal();
 		Color bg = bgColors[typeIndex];
@@ -265,7 +370,8 @@ public class FileDiffView extends UIElement {
 		g.setColor(fg);
 		g.drawString(linePrefixes[typeIndex], x0-wpref/2, y, GraphAssist.CENTER, GraphAssist.BOTTOM);
 		
-		int x = drawString(g, line.text(), x0, y, bg, fg);
+		LineText text = lineText(lineIndex, line);
+		int x = drawString(g, text.text, text.width, x0, y, bg, fg);
 		drawRemainder(g, x, y, bg);
 	}
 
@@ -274,8 +380,17 @@ public class FileDiffView extends UIElement {
 			g.fillRect(x, y-lineHeight+descent, maxx-x, lineHeight, bg);
 	}
 	
-	protected int drawString(GraphAssist g, String s, int x, int y, Color bg, Color fg) {
-		int w = fm.stringWidth(s);
+	protected LineText lineText(int lineIndex, Line line) {
+		LineText text = lineCache.get(lineIndex);
+		if(text==null) {
+			String s = line.text();
+			text = new LineText(s, fm.stringWidth(s));
+			lineCache.put(lineIndex, text);
+		}
+		return text;
+	}
+	
+	protected int drawString(GraphAssist g, String s, int w, int x, int y, Color bg, Color fg) {
 		if(x<maxx && x+w>minx) {
 			g.fillRect(x, y-lineHeight+descent, w, lineHeight, bg);
 			g.setColor(fg);
@@ -315,6 +430,10 @@ public class FileDiffView extends UIElement {
 			UIArrowButton.drawDownArrow(g, x, h-UIArrowButton.arrowSpan);
 	}
 
+	public static String expandTabs(String s) {
+		return s.indexOf('\t')<0 ? s : s.replace("\t", "    ");
+	}
+	
 	public static int numberWidth(FontMetrics fm, int n, String format, int margin) {
 		int d = 9;
 		while(d<n)
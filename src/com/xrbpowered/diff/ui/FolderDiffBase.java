@@ -1,10 +1,20 @@
 package com.xrbpowered.diff.ui;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 
+import javax.swing.SwingUtilities;
+
+import com.xrbpowered.diff.DiffCache;
+import com.xrbpowered.diff.DiffOptions;
 import com.xrbpowered.diff.DiffType;
 import com.xrbpowered.diff.FolderDiff;
+import com.xrbpowered.diff.FolderWatcher;
 import com.xrbpowered.diff.Ignore;
+import com.xrbpowered.diff.PackedDiff;
+import com.xrbpowered.diff.TextLines;
+import com.xrbpowered.utils.CancelToken;
 import com.xrbpowered.utils.TaskInterruptedException;
 import com.xrbpowered.utils.UISafeThread;
 import com.xrbpowered.zoomui.UIContainer;
@@ -18,9 +28,11 @@ public class FolderDiffBase extends UIContainer implements DiffListener {
 		private final FolderDiff diff;
 		private final UIProgressDisplay progress;
 		
-		public TaskThread(String pathA, String pathB) {
-			diff = new FolderDiff(pathA, pathB);
-			progress = new UIProgressDisplay(box, diff);
+		public TaskThread(FolderDiff.Listing listingA, FolderDiff.Listing listingB) {
+			diff = new FolderDiff(listingA, listingB, options);
+			folderDiffView.startDiff(diff);
+			progress = new UIProgressDisplay(split.second, diff);
+			split.second.layout();
 		}
 		
 		@Override
@@ -35,14 +47,93 @@ public class FolderDiffBase extends UIContainer implements DiffListener {
 		
 		@Override
 		protected void uiRun() {
+			if(taskThread!=this)
+				return;
+			taskThread = null;
 			progress.dismiss();
 			folderDiffView.setDiff(diff);
-			diffView.viewer.setDiff(null, null);
-			error.show("Select a file in the list to view the difference.");
+			if(options.watch)
+				startWatcher(diff);
+			if(selectedItem==null) {
+				diffView.viewer.setDiff(null, null);
+				error.show("Select a file in the list to view the difference.");
+			}
 			repaint();
 		}
+		
+		public void cancel() {
+			diff.cancel.cancel();
+			interrupt();
+			progress.dismiss();
+		}
 	}
 	
+	/**
+	 * Loads and compares a pair of files selected in the list. Results are dropped
+	 * if another item has been selected in the meantime.
+	 */
+	private final class FileTaskThread extends UISafeThread {
+		private final String pathA, pathB;
+		private final UIProgressDisplay progress;
+		private final CancelToken cancel = new CancelToken();
+		
+		private TextLines linesA = null;
+		private TextLines linesB = null;
+		private PackedDiff diff = null;
+		private String errorMessage = null;
+		
+		public FileTaskThread(String pathA, String pathB) {
+			this.pathA = pathA;
+			this.pathB = pathB;
+			progress = new UIProgressDisplay(split.second, "Loading...");
+			split.second.layout();
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run() {
+			try {
+				try {
+					DiffCache.Entry e = cache.diff(pathA, pathB, options, cancel);
+					linesA = e.linesA;
+					linesB = e.linesB;
+					diff = e.diff;
+				}
+				catch (IOException e) {
+					errorMessage = FileDiffBase.loadError(e);
+				}
+				TaskInterruptedException.check();
+				safeUIRunAsync();
+			}
+			catch (TaskInterruptedException e) {
+			}
+		}
+		
+		@Override
+		protected void uiRun() {
+			if(fileTaskThread!=this)
+				return;
+			fileTaskThread = null;
+			progress.dismiss();
+			if(errorMessage!=null) {
+				diffView.viewer.setDiff(null, null);
+				error.show(errorMessage);
+			}
+			else {
+				diffView.viewer.setDiff(linesA, linesB, diff);
+			}
+			repaint();
+		}
+		
+		public void cancel() {
+			cancel.cancel();
+			interrupt();
+			progress.dismiss();
+		}
+	}
+	
+	public final DiffOptions options;
+	public final DiffCache cache = new DiffCache();
 	public final FileSelectionPane fileSel;
 	public final FolderDiffView folderDiffView;
 	public final FileDiffView.Area diffView;
@@ -50,10 +141,18 @@ public class FolderDiffBase extends UIContainer implements DiffListener {
 	
 	private final UILayersContainer box;
 	private final UISplitContainer split;
+	private final DiffPrefetcher prefetcher;
 	private TaskThread taskThread = null;
+	// listings of the last directory diff, the side whose path is not changed is not walked again
+	private FolderDiff.Listing listingA = null;
+	private FolderDiff.Listing listingB = null;
+	private FolderWatcher watcher = null;
+	private FileTaskThread fileTaskThread = null;
+	private FolderDiff.DiffItem selectedItem = null;
 	
-	public FolderDiffBase(UIContainer parent) {
+	public FolderDiffBase(UIContainer parent, DiffOptions options) {
 		super(parent);
+		this.options = options;
 		fileSel = new FileSelectionPane(parent, true).setDiffListener(this);
 		box = new UILayersContainer(this);
 		split = new UISplitContainer(box, false, 0.25f);
@@ -62,42 +161,128 @@ public class FolderDiffBase extends UIContainer implements DiffListener {
 			@Override
 			public void onItemSelected(UIListItem item) {
 				FolderDiff.DiffItem diff = (FolderDiff.DiffItem) item.object;
+				// streamed results keep the selection when the list is updated
+				if(diff==selectedItem)
+					return;
+				selectedItem = diff;
+				cancelFileTask();
+				if(taskThread!=null)
+					taskThread.progress.dismiss();
 				if(diff.isDir) {
 					diffView.viewer.setDiff(null, null);
 					error.show(diff.path.getFileName().toString() + " is a directory.");
 				}
 				else {
-					String fileA = diff.type==DiffType.inserted ? "" : new File(pathA.toFile(), diff.path.toString()).toPath().toString();
-					String fileB = diff.type==DiffType.deleted ? "" : new File(pathB.toFile(), diff.path.toString()).toPath().toString();
-					FileDiffBase.setDiff(diffView.viewer, fileA, fileB, error);
+					String fileA = filePathA(diff);
+					String fileB = filePathB(diff);
+					error.setVisible(false);
+					DiffCache.Entry cached = cache.get(fileA, fileB, options);
+					if(cached!=null) {
+						diffView.viewer.setDiff(cached.linesA, cached.linesB, cached.diff);
+					}
+					else {
+						fileTaskThread = new FileTaskThread(fileA, fileB);
+						fileTaskThread.start();
+					}
+					prefetchAfter(item.index, new String[] {fileA, fileB});
 				}
 			}
 		};
 		
-		diffView = new FileDiffView.Area(split.second);
+		diffView = new FileDiffView.Area(split.second, options);
 		error = new ErrorOverlay(split.second);
+		
+		prefetcher = new DiffPrefetcher(cache, options);
+		prefetcher.start();
+	}
+	
+	private String filePathA(FolderDiff.DiffItem diff) {
+		return diff.type==DiffType.inserted ? "" : new File(folderDiffView.pathA.toFile(), diff.path.toString()).toPath().toString();
+	}
+	
+	private String filePathB(FolderDiff.DiffItem diff) {
+		return diff.type==DiffType.deleted ? "" : new File(folderDiffView.pathB.toFile(), diff.path.toString()).toPath().toString();
+	}
+	
+	/**
+	 * Queues the next few modified files after the list item for prefetching.
+	 * The selected pair is not cancelled if it is being prefetched.
+	 */
+	private void prefetchAfter(int index, String[] selected) {
+		ArrayList<String[]> pairs = new ArrayList<>();
+		int n = folderDiffView.getNumItems();
+		for(int i=index+1; i<n && pairs.size()<DiffPrefetcher.prefetchCount; i++) {
+			FolderDiff.DiffItem diff = (FolderDiff.DiffItem) folderDiffView.getItem(i).object;
+			if(diff.type==DiffType.modified && !diff.isDir)
+				pairs.add(new String[] {filePathA(diff), filePathB(diff)});
+		}
+		prefetcher.prefetch(selected, pairs);
 	}
 	
+	/**
+	 * Compares the directories. A null path keeps that side and reuses its listing
+	 * from the last diff, so only the other side is walked.
+	 */
 	@Override
 	public void setDiff(String pathA, String pathB) {
+		boolean keepA = (pathA==null);
+		boolean keepB = (pathB==null);
 		if(pathA==null)
 			pathA = folderDiffView.pathA.toString();
 		if(pathB==null)
 			pathB = folderDiffView.pathB.toString();
 		
+		stopWatcher();
+		cancelFileTask();
+		prefetcher.cancel();
+		selectedItem = null;
 		diffView.viewer.setDiff(null, null);
 		if(pathA!=null && pathB!=null) {
 			if(taskThread!=null)
-				taskThread.interrupt();
-			taskThread = new TaskThread(pathA, pathB);
+				taskThread.cancel();
+			listingA = reuseListing(keepA, listingA, pathA);
+			listingB = reuseListing(keepB, listingB, pathB);
+			taskThread = new TaskThread(listingA, listingB);
 			taskThread.start();
 		}
 		else {
-			folderDiffView.setDiff(pathA, pathB);
+			folderDiffView.setDiff(pathA, pathB, options);
 			error.show("Select a file in the list to view the difference.");
 		}
 	}
 		
+	private static FolderDiff.Listing reuseListing(boolean keep, FolderDiff.Listing listing, String path) {
+		if(keep && listing!=null && listing.root.equals(FolderDiff.makeRoot(path)))
+			return listing;
+		return new FolderDiff.Listing(path);
+	}
+	
+	/**
+	 * Applies changes on disk to the list. A changed item that is selected is selected
+	 * again, so the file diff is reloaded.
+	 */
+	private void startWatcher(FolderDiff diff) {
+		watcher = new FolderWatcher(diff, res -> SwingUtilities.invokeLater(() -> {
+			folderDiffView.updateItems(diff, res);
+			repaint();
+		}));
+		watcher.start();
+	}
+	
+	private void stopWatcher() {
+		if(watcher!=null) {
+			watcher.close();
+			watcher = null;
+		}
+	}
+	
+	private void cancelFileTask() {
+		if(fileTaskThread!=null) {
+			fileTaskThread.cancel();
+			fileTaskThread = null;
+		}
+	}
+	
 	@Override
 	public void layout() {
 		fileSel.layout();
@@ -12,9 +12,16 @@ import java.awt.FontMetrics;
 import java.io.File;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+import com.xrbpowered.diff.DiffOptions;
 import com.xrbpowered.diff.DiffType;
 import com.xrbpowered.diff.FolderDiff;
+import com.xrbpowered.diff.FolderWatcher;
 import com.xrbpowered.diff.Ignore;
 import com.xrbpowered.diff.FolderDiff.DiffItem;
 import com.xrbpowered.zoomui.GraphAssist;
@@ -108,8 +115,13 @@ public class FolderDiffView extends UIListBox {
 			if(diff.isDir) {
 				g.fillRect(rightx, 0, itemMargin, getHeight(), sel ? fgColors[type] : marginColors[type]);
 				g.setColor(sel ? Color.WHITE : fgColors[type]);
-				g.drawString(String.format("%+d", diff.type==DiffType.deleted ? -diff.size : diff.size),
-						getWidth()-4, getHeight()/2, GraphAssist.RIGHT, GraphAssist.CENTER);
+				int size = diff.size;
+				String s;
+				if(size<0)
+					s = diff.type==DiffType.deleted ? "-..." : "+...";
+				else
+					s = String.format("%+d", diff.type==DiffType.deleted ? -size : size);
+				g.drawString(s, getWidth()-4, getHeight()/2, GraphAssist.RIGHT, GraphAssist.CENTER);
 			}
 			else {
 				SvgIcon icon = diffIcons[type];
@@ -126,43 +138,201 @@ public class FolderDiffView extends UIListBox {
 	protected int maxSize = 0;
 	protected int itemMargin = 0;
 	
+	/**
+	 * Delay for collecting streamed results before the list is updated, in milliseconds.
+	 */
+	public static int streamDelay = 250;
+	
+	/**
+	 * Streamed results are shown when there are at least 1/streamGrowth as many of them
+	 * as items in the list, or after this delay in milliseconds. Every update rebuilds
+	 * all list items, so the number of updates grows with the log of the list size,
+	 * not with its size.
+	 */
+	public static int maxStreamDelay = 2000;
+	public static int streamGrowth = 4;
+	
+	/**
+	 * Depth-first order of {@link FolderDiff#res}, see {@link FolderDiff#comparePaths(Path, Path)}.
+	 */
+	public static final Comparator<DiffItem> pathOrder = (a, b) -> FolderDiff.comparePaths(a.path, b.path);
+	
+	// the diff being shown, directory counts and results from other diffs are ignored
+	private volatile FolderDiff diff = null;
+	
+	private ArrayList<DiffItem> items = new ArrayList<>();
+	private final ArrayList<DiffItem> pending = new ArrayList<>();
+	private final Timer streamTimer;
+	private long lastStreamed = 0L;
+	
 	public Path pathA = strToPath(".");
 	public Path pathB = strToPath(".");
 	
 	public FolderDiffView(UIContainer parent) {
 		super(parent);
+		streamTimer = new Timer(streamDelay, e -> addPending());
+		streamTimer.setRepeats(false);
 	}
 	
 	private static Path strToPath(String path) {
 		return new File(path).toPath().toAbsolutePath().normalize();
 	}
 	
-	public void setDiff(String pathA, String pathB) {
+	public void setDiff(String pathA, String pathB, DiffOptions options) {
 		getView().removeAllChildren();
 		
 		ArrayList<DiffItem> res;
 		if(pathA!=null && pathB!=null) {
-			FolderDiff diff = new FolderDiff(pathA, pathB);
+			FolderDiff diff = new FolderDiff(pathA, pathB, options);
+			listenCounts(diff);
 			diff.compareFolders(Ignore.defaultIgnore);
 			res = diff.res;
 			this.pathA = diff.rootA;
 			this.pathB = diff.rootB;
 		}
 		else {
+			this.diff = null;
 			res = new ArrayList<>();
 		}
 		
 		maxSize = 0;
 		itemMargin = 0;
+		items = res;
 		setItems(res);
 	}
 	
+	/**
+	 * Shows the final results. If they have been streamed, the selection is kept.
+	 */
 	public void setDiff(FolderDiff diff) {
+		boolean streamed = (this.diff==diff);
+		diff.resultListener = null;
+		streamTimer.stop();
+		synchronized(pending) {
+			pending.clear();
+		}
+		if(streamed) {
+			showItems(new ArrayList<>(diff.res));
+			return;
+		}
+		listenCounts(diff);
 		this.pathA = diff.rootA;
 		this.pathB = diff.rootB;
 		maxSize = 0;
 		itemMargin = 0;
-		setItems(diff.res);
+		items = new ArrayList<>(diff.res);
+		setItems(items);
+	}
+	
+	/**
+	 * Shows results updated by a {@link FolderWatcher}, keeping the selection.
+	 */
+	public void updateItems(FolderDiff diff, List<DiffItem> res) {
+		if(this.diff!=diff)
+			return;
+		showItems(new ArrayList<>(res));
+	}
+	
+	/**
+	 * Clears the list and adds items as the diff finds them, before {@link FolderDiff#compareFolders(Ignore)}
+	 * is complete. {@link #setDiff(FolderDiff)} should be called when it is.
+	 */
+	public void startDiff(FolderDiff diff) {
+		listenCounts(diff);
+		this.pathA = diff.rootA;
+		this.pathB = diff.rootB;
+		synchronized(pending) {
+			pending.clear();
+		}
+		lastStreamed = 0L;
+		diff.resultListener = found -> {
+			boolean first;
+			synchronized(pending) {
+				if(this.diff!=diff)
+					return;
+				first = pending.isEmpty();
+				pending.addAll(found);
+			}
+			if(first)
+				SwingUtilities.invokeLater(() -> streamTimer.start());
+		};
+		maxSize = 0;
+		itemMargin = 0;
+		items = new ArrayList<>();
+		setItems(items);
+	}
+	
+	/**
+	 * Merges the items collected since the last update into the sorted list,
+	 * or waits for more if there are few of them, see {@link #maxStreamDelay}.
+	 */
+	private void addPending() {
+		ArrayList<DiffItem> batch;
+		long now = System.currentTimeMillis();
+		synchronized(pending) {
+			if(pending.isEmpty())
+				return;
+			if(pending.size()*streamGrowth<items.size() && now-lastStreamed<maxStreamDelay) {
+				// the listener starts the timer only for the first pending item
+				streamTimer.restart();
+				return;
+			}
+			batch = new ArrayList<>(pending);
+			pending.clear();
+		}
+		lastStreamed = now;
+		batch.sort(pathOrder);
+		ArrayList<DiffItem> merged = new ArrayList<>(items.size()+batch.size());
+		int i = 0;
+		int j = 0;
+		while(i<items.size() || j<batch.size()) {
+			if(j>=batch.size() || i<items.size() && pathOrder.compare(items.get(i), batch.get(j))<=0)
+				merged.add(items.get(i++));
+			else
+				merged.add(batch.get(j++));
+		}
+		showItems(merged);
+	}
+	
+	private void showItems(ArrayList<DiffItem> list) {
+		int sel = getSelectedIndex();
+		Object selected = (sel>=0 && sel<getNumItems()) ? getItem(sel).object : null;
+		items = list;
+		itemMargin = 0;
+		setItems(list);
+		if(selected!=null) {
+			// an item replaced by an update is found by path
+			Path path = ((DiffItem) selected).path;
+			int index = -1;
+			for(int i=0; i<list.size(); i++) {
+				if(list.get(i)==selected) {
+					index = i;
+					break;
+				}
+				if(index<0 && list.get(i).path.equals(path))
+					index = i;
+			}
+			if(index>=0)
+				select(index);
+		}
+		repaint();
+	}
+
+	/**
+	 * Makes this view show the diff and repaint when directory counts arrive.
+	 * Counts that are complete before the items are created are picked up by {@link #createItem(int, Object)}.
+	 */
+	private void listenCounts(FolderDiff diff) {
+		this.diff = diff;
+		diff.countListener = item -> SwingUtilities.invokeLater(() -> {
+			if(this.diff!=diff)
+				return;
+			if(item.size>maxSize) {
+				maxSize = item.size;
+				itemMargin = 0;
+			}
+			repaint();
+		});
 	}
 
 	@Override
@@ -21,13 +21,24 @@ public class UIProgressDisplay extends UIElement {
 	public static final int width = 100;
 	
 	public final FolderDiff diff;
+	public final String message;
 	
 	private final UISafeThread repaintThread;
 	private int spin = 0;
+	private boolean dismissed = false;
 	
 	public UIProgressDisplay(UIContainer parent, FolderDiff diff) {
+		this(parent, diff, null);
+	}
+	
+	public UIProgressDisplay(UIContainer parent, String message) {
+		this(parent, null, message);
+	}
+	
+	private UIProgressDisplay(UIContainer parent, FolderDiff diff, String message) {
 		super(parent);
 		this.diff = diff;
+		this.message = message;
 		
 		repaintThread = new UISafeThread() {
 			@Override
@@ -45,6 +56,9 @@ public class UIProgressDisplay extends UIElement {
 	}
 	
 	public void dismiss() {
+		if(dismissed)
+			return;
+		dismissed = true;
 		repaintThread.interrupt();
 		getParent().removeChild(this);
 	}
@@ -62,7 +76,11 @@ public class UIProgressDisplay extends UIElement {
 		
 		g.setFont(UIButton.font);
 		g.setColor(colorText);
-		g.drawString(String.format("%d files", diff.progress), x, y-2, GraphAssist.LEFT, GraphAssist.BOTTOM);
+		if(diff==null) {
+			g.drawString(message, x, y, GraphAssist.LEFT, GraphAssist.CENTER);
+			return;
+		}
+		g.drawString(String.format("%d files", diff.getProgress()), x, y-2, GraphAssist.LEFT, GraphAssist.BOTTOM);
 		g.setColor(colorPath);
 		g.drawString(diff.currentDir, x, y+2, GraphAssist.LEFT, GraphAssist.TOP);
 	}
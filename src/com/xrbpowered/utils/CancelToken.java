@@ -0,0 +1,39 @@
+package com.xrbpowered.utils;
+
+/**
+ * Cooperative cancellation flag shared between the caller and a long-running task.
+ * Unlike thread interruption, it also reaches tasks running in other threads,
+ * such as parts of a parallel search in a {@link java.util.concurrent.ForkJoinPool}.
+ */
+public class CancelToken {
+
+	/**
+	 * Token that is never cancelled.
+	 */
+	public static final CancelToken none = new CancelToken() {
+		@Override
+		public void cancel() {
+		}
+	};
+	
+	private volatile boolean cancelled = false;
+	
+	public void cancel() {
+		cancelled = true;
+	}
+	
+	public boolean isCancelled() {
+		return cancelled;
+	}
+	
+	/**
+	 * Cancellation point.
+	 * 
+	 * @throws TaskInterruptedException if the token has been cancelled
+	 */
+	public void check() {
+		if(cancelled)
+			throw new TaskInterruptedException();
+	}
+
+}